@@ -0,0 +1,63 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * finding the start of the day a message was sent, which is done for every message stored, and formatting the time
+ * of each reply line
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DayTruncationBenchmark {
+
+    private final StringBuilder line = new StringBuilder();
+
+    @Benchmark
+    public Date newCalendarPerCall() {
+        Calendar dayCal = Calendar.getInstance();
+        dayCal.set(Calendar.HOUR_OF_DAY, 0);
+        dayCal.set(Calendar.MINUTE, 0);
+        dayCal.set(Calendar.SECOND, 0);
+        dayCal.set(Calendar.MILLISECOND, 0);
+        return dayCal.getTime();
+    }
+
+    @Benchmark
+    public Date cachedDayBoundary() {
+        return TimeKeeper.dayOf(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public StringBuilder formatReplyTime() {
+        line.setLength(0);
+        return TimeKeeper.appendTo(line, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * stands in for cassandra when measuring the ingest pipeline, using the same tokenizer as CassandraWriter, but
+ * into maps, with writes that complete immediately
+ */
+class InMemoryIngestSink implements IngestSink {
+
+    private final Map<String, Queue<IngestEntry>> messages = new ConcurrentHashMap<>();
+    private final Map<String, Queue<IngestEntry>> topics = new ConcurrentHashMap<>();
+    private final AtomicLong written = new AtomicLong();
+    private final MessageTokenizer tokenizer = new MessageTokenizer();
+
+    @Override
+    public List<Write> buildWrites(List<IngestEntry> entries) {
+        return buildWrites(entries, true, true);
+    }
+
+    @Override
+    public List<Write> buildRawWrites(List<IngestEntry> entries) {
+        return buildWrites(entries, true, false);
+    }
+
+    @Override
+    public List<Write> buildIndexWrites(List<IngestEntry> entries) {
+        return buildWrites(entries, false, true);
+    }
+
+    private List<Write> buildWrites(List<IngestEntry> entries, boolean rows, boolean words) {
+        List<Write> writes = new ArrayList<>(entries.size());
+        for (final IngestEntry entry : entries) {
+            final String dayKey = TimeKeeper.startOfDay(entry.getTimestamp()) + entry.getChannel();
+            writes.add(() -> {
+                if (rows) {
+                    messages.computeIfAbsent(dayKey, k -> new ConcurrentLinkedQueue<>()).add(entry);
+                    written.incrementAndGet();
+                }
+                if (words) {
+                    tokenizer.tokenize(entry.getMessage(),
+                            word -> topics.computeIfAbsent(entry.getChannel() + '\u0000' + word, k -> new ConcurrentLinkedQueue<>()).add(entry));
+                }
+                return Futures.immediateFuture(null);
+            });
+        }
+        return writes;
+    }
+
+    long getWrittenCount() {
+        return written.get();
+    }
+
+    void clear() {
+        messages.clear();
+        topics.clear();
+    }
+}
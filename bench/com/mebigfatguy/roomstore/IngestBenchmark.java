@@ -0,0 +1,98 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * end to end throughput of the ingest pipeline, from submit until the message has been written, against an in memory
+ * sink so that only roomstore's own overhead is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IngestBenchmark {
+
+    private static final int MESSAGES_PER_INVOCATION = 1000;
+    private static final long DEADLINE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @Param({ "1", "4" })
+    public int workers;
+
+    private InMemoryIngestSink sink;
+    private IngestPipeline pipeline;
+    private String[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        messages = SampleMessages.create(1024, 20);
+        sink = new InMemoryIngestSink();
+        pipeline = new IngestPipeline(sink, IngestPipeline.DEFAULT_QUEUE_SIZE, workers, OverflowPolicy.BLOCK);
+        pipeline.setBlockMillis(TimeUnit.SECONDS.toMillis(10));
+        pipeline.startIngesting();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearSink() {
+        sink.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.stopIngesting();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public void submitAndWrite() {
+        long target = getFinishedCount() + MESSAGES_PER_INVOCATION;
+        for (int i = 0; i < MESSAGES_PER_INVOCATION; i++) {
+            pipeline.submit("#cassandra", "user" + (i & 15), messages[next++ & 1023]);
+        }
+        long deadline = System.nanoTime() + DEADLINE_NANOS;
+        while (getFinishedCount() < target) {
+            if ((System.nanoTime() - deadline) > 0) {
+                throw new IllegalStateException("Only " + (MESSAGES_PER_INVOCATION - (target - getFinishedCount())) + " of " + MESSAGES_PER_INVOCATION
+                        + " messages were written, dropped or failed in time");
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * counts the messages that will never be written as well, so that a dropped or failed message can't leave the
+     * benchmark waiting for it
+     */
+    private long getFinishedCount() {
+        return sink.getWrittenCount() + pipeline.getDroppedCount() + pipeline.getFailedCount();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * ingest and topic query costs of the embedded store, writing to a temporary directory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LocalStoreBenchmark {
+
+    private static final int MESSAGES_PER_INVOCATION = 64;
+
+    private File directory;
+    private LocalStore store;
+    private String[] messages;
+    private List<IngestEntry> chunk;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("roomstore-bench").toFile();
+        store = new LocalStore(directory);
+        messages = SampleMessages.create(1024, 20);
+        chunk = new ArrayList<>(MESSAGES_PER_INVOCATION);
+        for (int i = 0; i < 100000; i++) {
+            store.addMessage("#cassandra", "user" + (i & 15), messages[i & 1023]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public void writeChunk() {
+        chunk.clear();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGES_PER_INVOCATION; i++) {
+            chunk.add(new IngestEntry("#cassandra", "user" + (i & 15), messages[next++ & 1023], now));
+        }
+        store.buildWrites(chunk).get(0).execute();
+    }
+
+    @Benchmark
+    public List<Message> topicPage() {
+        return store.getTopicMessages("#cassandra", "compaction", 50, null).getMessages();
+    }
+
+    @Benchmark
+    public List<Message> twoWordTopic() {
+        return store.getTopicMessages("#cassandra", Arrays.asList("compaction", "repair"), 50);
+    }
+}
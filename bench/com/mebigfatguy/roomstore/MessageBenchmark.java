@@ -0,0 +1,71 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Message's comparison methods, which the topic queries and sorted sets lean on
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageBenchmark {
+
+    private Message[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        String[] text = SampleMessages.create(1024, 10);
+        messages = new Message[text.length];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < text.length; i++) {
+            messages[i] = new Message("#cassandra", "user" + (i % 17), now - (i * 60000L), text[i]);
+        }
+    }
+
+    @Benchmark
+    public int compareTo() {
+        int i = next++;
+        return messages[i & 1023].compareTo(messages[(i + 1) & 1023]);
+    }
+
+    @Benchmark
+    public int hashCodes() {
+        return messages[next++ & 1023].hashCode();
+    }
+
+    @Benchmark
+    public void equalsSelfAndOther(Blackhole bh) {
+        int i = next++;
+        Message m = messages[i & 1023];
+        bh.consume(m.equals(messages[i & 1023]));
+        bh.consume(m.equals(messages[(i + 1) & 1023]));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * how fast replies can be queued and handed to the bot, with the rate limit set high enough to be out of the way
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MessagePosterBenchmark {
+
+    @Param({ "1", "50" })
+    public int recipients;
+
+    private MessagePoster poster;
+    private String[] names;
+    private String[] lines;
+
+    @Setup
+    public void setUp() {
+        names = new String[recipients];
+        for (int i = 0; i < recipients; i++) {
+            names[i] = "user" + i;
+        }
+        lines = SampleMessages.create(256, 10);
+        poster = new MessagePoster(Double.MAX_VALUE, Integer.MAX_VALUE, 10000);
+        poster.startPosting((recipient, line) -> {
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        poster.stopPosting();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean post(ThreadIndex index) {
+        int i = index.next++;
+        return poster.post(names[i % names.length], lines[i & 255]);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadIndex {
+        int next;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.Random;
+
+/**
+ * builds repeatable, irc looking message text for the benchmarks
+ */
+final class SampleMessages {
+
+    private static final String[] WORDS = { "the", "a", "is", "cassandra", "compaction", "node", "repair", "why", "does", "my", "query",
+            "time", "out", "when", "I", "use", "ALLOW", "FILTERING", "on", "table", "try", "nodetool", "status", "java", "heap", "GC",
+            "pause", "see", "https://issues.apache.org/jira/browse/CASSANDRA-12345", "thanks!", "lol", "ok,", "so", "what", "about",
+            "version", "3.11.4?", "upgrade", "sstable", "tombstones", "partition", "key", "wide", "row", "you", "should", "model" };
+
+    private SampleMessages() {
+    }
+
+    static String[] create(int count, int wordsPerMessage) {
+        Random r = new Random(42);
+        String[] messages = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            int words = 1 + r.nextInt(wordsPerMessage * 2);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                sb.append(WORDS[r.nextInt(WORDS.length)]);
+            }
+            messages[i] = sb.toString();
+        }
+        return messages;
+    }
+}
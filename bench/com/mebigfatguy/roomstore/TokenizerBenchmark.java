@@ -0,0 +1,83 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * the word splitting done for every ingested message
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenizerBenchmark {
+
+    @Param({ "5", "20", "40" })
+    public int wordsPerMessage;
+
+    private String[] messages;
+    private int next;
+    private final MessageTokenizer tokenizer = new MessageTokenizer(StopWordFilter.NONE);
+
+    @Setup
+    public void setUp() {
+        messages = SampleMessages.create(1024, wordsPerMessage);
+    }
+
+    @Benchmark
+    public void regexSplit(Blackhole bh) {
+        String message = messages[next++ & 1023];
+        for (String word : message.split("\\s+|\\.|\\,|\\?|\\:|/")) {
+            if (word.length() > 0) {
+                word = word.toLowerCase();
+                bh.consume(word);
+                bh.consume(String.valueOf(word.charAt(0)));
+            }
+        }
+    }
+
+    @Benchmark
+    public int messageTokenizer(final Blackhole bh) {
+        return tokenizer.tokenize(messages[next++ & 1023], word -> {
+            bh.consume(word);
+            bh.consume(MessageTokenizer.prefixOf(word));
+        });
+    }
+
+    @Benchmark
+    public void commandCheck(Blackhole bh) {
+        String[] msgParts = messages[next++ & 1023].split("\\s+");
+        bh.consume((msgParts.length >= 2) && "~".equals(msgParts[0]));
+    }
+
+    @Benchmark
+    public boolean commandCheckWithoutSplit() {
+        return MessageTokenizer.isCommand(messages[next++ & 1023]);
+    }
+}
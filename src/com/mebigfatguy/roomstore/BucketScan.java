@@ -0,0 +1,119 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+/**
+ * a query whose rows are spread over several partitions, such as the monthly buckets of a topic, read one partition
+ * after another as if it were a single result. Paging tokens name the bucket they point into along with the driver's
+ * paging state, so a page can be resumed even if buckets have been added in front of it since.
+ */
+class BucketScan {
+
+    private final String channel;
+    private final List<String> names = new ArrayList<>();
+    private final List<Statement> statements = new ArrayList<>();
+
+    public BucketScan(String scanChannel) {
+        channel = scanChannel;
+    }
+
+    /**
+     * adds the next partition to read, named so paging tokens can find it again
+     */
+    public BucketScan add(String name, Statement statement) {
+        names.add(name);
+        statements.add(statement);
+        return this;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public String getName(int bucket) {
+        return names.get(bucket);
+    }
+
+    public Statement getStatement(int bucket) {
+        return statements.get(bucket);
+    }
+
+    /**
+     * fetches at most limit messages, starting from where a previous page left off. If the bucket the token points into
+     * no longer exists, an empty last page is returned.
+     */
+    public MessagePage fetchPage(Session session, int limit, String pagingToken) {
+        int start = 0;
+        PagingState state = null;
+        if (pagingToken != null) {
+            int colon = pagingToken.indexOf(':');
+            start = names.indexOf((colon < 0) ? pagingToken : pagingToken.substring(0, colon));
+            if (start < 0) {
+                return new MessagePage(new ArrayList<Message>(), null);
+            }
+            if (colon >= 0) {
+                state = PagingState.fromString(pagingToken.substring(colon + 1));
+            }
+        }
+
+        List<Message> messages = new ArrayList<>(limit);
+        for (int bucket = start; bucket < statements.size(); bucket++) {
+            Statement statement = statements.get(bucket);
+            statement.setFetchSize(limit - messages.size());
+            if (state != null) {
+                statement.setPagingState(state);
+                state = null;
+            }
+
+            ResultSet rs = session.execute(statement);
+            int available = rs.getAvailableWithoutFetching();
+            for (int i = 0; i < available; i++) {
+                messages.add(CassandraWriter.toMessage(channel, rs.one()));
+            }
+
+            if (!rs.isFullyFetched()) {
+                return new MessagePage(messages, names.get(bucket) + ':' + rs.getExecutionInfo().getPagingState());
+            }
+            if (messages.size() >= limit) {
+                return new MessagePage(messages, ((bucket + 1) < statements.size()) ? names.get(bucket + 1) : null);
+            }
+        }
+
+        return new MessagePage(messages, null);
+    }
+
+    /**
+     * streams every message in bucket order, fetching fetchSize rows at a time
+     */
+    public MessageIterator iterator(Session session, int fetchSize) {
+        return new MessageIterator(session, this, fetchSize);
+    }
+}
@@ -18,19 +18,39 @@
  */
 package com.mebigfatguy.roomstore;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.jibble.pircbot.PircBot;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 class CasBot extends PircBot {
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_TOPIC_RESULTS = 200;
+    private static final int DEFAULT_HISTORY_LINES = 20;
+    private static final int MAX_HISTORY_LINES = 200;
+    private static final long MAX_LOOKBACK_MILLIS = TimeUnit.DAYS.toMillis(31);
+    private static final int MAX_GAP_LINES = 5;
+    private static final int DEFAULT_TOP_WORDS = 10;
+    private static final int MAX_TOP_WORDS = 50;
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("help", "seen", "topic", "today", "date", "more", "top", "trending",
+            "last", "user", "between", "since"));
+
     private final IRCConnector ircConnector;
     private final MessagePoster messagePoster;
+    private final ConcurrentMap<String, PagedQuery> pendingQueries = new ConcurrentHashMap<>();
 
     public CasBot(IRCConnector con, MessagePoster poster, String nick) {
         ircConnector = con;
@@ -46,99 +66,267 @@ class CasBot extends PircBot {
     }
 
     @Override
-    public void onMessage(String channel, String sender, String login, String hostname, String message) {
+    public void onMessage(String ircChannel, final String sender, String login, String hostname, String message) {
+        final String channel = ircConnector.storedName(ircChannel);
         try {
-            String[] msgParts = message.split("\\s+");
-            if (msgParts.length >= 2) {
-                if ("~".equals(msgParts[0])) {
-                    if ("help".equalsIgnoreCase(msgParts[1])) {
-                        StringBuilder response = new StringBuilder();
-                        response.append("roomstore - https://github.com/mebigfatguy/roomstore\n");
-                        response.append("~ help                  -- this message\n");
-                        response.append("~ seen user             -- show last time user said something if available\n");
-                        response.append("~ today                 -- see messages from today\n");
-                        response.append("~ date MM/yy/dddd       -- see messages from date\n");
-                        response.append("~ topic {word} ...      -- see messages that talk about the words specified\n");
-                        messagePoster.post(sender, response.toString());
-                    } else if ((msgParts.length >= 3) && "seen".equalsIgnoreCase(msgParts[1])) {
-                        String user = msgParts[2].trim();
-                        Message msg = ircConnector.writer.getLastMessage(channel, user);
-                        if (msg != null) {
-                            messagePoster.post(sender, user + " last seen " + DateFormat.getInstance().format(msg.getTime()) + " saying: " + msg.getMessage());
-                        }
-                    } else if ((msgParts.length >= 3) && "topic".equalsIgnoreCase(msgParts[1])) {
-                        String word = msgParts[2].trim().toLowerCase();
-                        Set<Message> intersectionMessages = new TreeSet<>(ircConnector.writer.getTopicMessages(channel, word));
-
-                        for (int i = 3; i < msgParts.length; ++i) {
-                            word = msgParts[i].trim().toLowerCase();
-                            List<Message> messages = ircConnector.writer.getTopicMessages(channel, word);
-                            intersectionMessages.retainAll(messages);
-                        }
-                        for (Message msg : intersectionMessages) {
-                            messagePoster.post(msg.getSender(),
-                                    msg.getSender() + " @ " + DateFormat.getInstance().format(msg.getTime()) + " said: " + msg.getMessage());
-                        }
-                    } else if ("today".equalsIgnoreCase(msgParts[1])) {
-                        Calendar dayCal = Calendar.getInstance();
-                        dayCal.set(Calendar.HOUR_OF_DAY, 0);
-                        dayCal.set(Calendar.MINUTE, 0);
-                        dayCal.set(Calendar.SECOND, 0);
-                        dayCal.set(Calendar.MILLISECOND, 0);
-
-                        List<Message> msgs = ircConnector.writer.getMessages(channel, dayCal.getTime());
-                        sendMessageList(sender, msgs);
-                    } else if ((msgParts.length >= 3) && "date".equalsIgnoreCase(msgParts[1])) {
-                        SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-                        Date day = sdf.parse(msgParts[2]);
-
-                        List<Message> msgs = ircConnector.writer.getMessages(channel, day);
-                        sendMessageList(sender, msgs);
-                    }
-                    return;
+            if (MessageTokenizer.isCommand(message)) {
+                final String[] msgParts = message.split("\\s+");
+                if ("stop".equalsIgnoreCase(msgParts[1])) {
+                    pendingQueries.remove(sender);
+                    ircConnector.commands.cancel(ircConnector.userKey(sender));
+                    messagePoster.cancel(sender);
+                } else if (ircConnector.writer == null) {
+                    messagePoster.post(sender, "still starting up, try again in a moment");
+                } else if (!ircConnector.commands.submit(ircConnector.userKey(sender), () -> runCommand(channel, sender, msgParts))) {
+                    messagePoster.post(sender, "still working on your earlier requests, say ~ stop to cancel them");
                 }
+                return;
             }
-            ircConnector.writer.addMessage(channel, sender, message);
+            ircConnector.pipeline.submit(channel, sender, message);
 
         } catch (Exception e) {
-            IRCConnector.LOGGER.error("Failed processing message on channel {} for user {} - {}", channel, sender, message);
+            IRCConnector.LOGGER.error("Failed processing message on channel {} for user {} - {}", channel, sender, message, e);
         }
     }
 
-    public void sendMessageList(String sender, List<Message> msgs) {
+    /**
+     * runs a ~ command, on a command thread rather than the irc event thread
+     */
+    private void runCommand(final String channel, String sender, String[] msgParts) {
+        String command = msgParts[1].toLowerCase(Locale.ENGLISH);
+        // only known commands get their own metrics, so users can't make up new ones
+        String metric = MetricRegistry.name("command", COMMANDS.contains(command) ? command : "unknown");
+        Timer.Context timing = Instrumentation.REGISTRY.timer(metric).time();
+        try {
+            if ("help".equalsIgnoreCase(msgParts[1])) {
+                StringBuilder response = new StringBuilder();
+                response.append("roomstore - https://github.com/mebigfatguy/roomstore\n");
+                response.append("~ help                  -- this message\n");
+                response.append("~ seen user             -- show last time user said something if available\n");
+                response.append("~ today                 -- see messages from today\n");
+                response.append("~ date MM/yy/dddd       -- see messages from date\n");
+                response.append("~ topic {word} ...      -- see messages that talk about the words specified\n");
+                response.append("~ more                  -- see the next page of the last today, date or topic request\n");
+                response.append("~ last [n]              -- see the last n messages\n");
+                response.append("~ user name [n]         -- see the last n messages from a user\n");
+                response.append("~ between H:mm H:mm [MM/dd/yyyy] -- see messages from a time range today, or on a date\n");
+                response.append("~ since [H:mm]          -- see messages since you last spoke, or since a time today\n");
+                response.append("~ top [n]               -- see the n words said most in the last day\n");
+                response.append("~ trending [n]          -- see the n words said far more in the last couple of hours than before\n");
+                response.append("~ stop                  -- stop sending the rest of what was requested\n");
+                messagePoster.post(sender, response.toString());
+            } else if ((msgParts.length >= 3) && "seen".equalsIgnoreCase(msgParts[1])) {
+                String user = msgParts[2].trim();
+                Message msg = ircConnector.writer.getLastMessage(channel, user);
+                if (msg != null) {
+                    messagePoster.post(sender, user + " last seen " + TimeKeeper.format(msg.getTime()) + " saying: " + msg.getMessage());
+                }
+            } else if ((msgParts.length == 3) && "topic".equalsIgnoreCase(msgParts[1])) {
+                final String word = msgParts[2].trim().toLowerCase();
+                sendMessagePage(sender, new PagedQuery() {
+                    @Override
+                    public MessagePage fetch(String pagingToken) {
+                        return ircConnector.writer.getTopicMessages(channel, word, PAGE_SIZE, pagingToken);
+                    }
+                }, null);
+            } else if ((msgParts.length > 3) && "topic".equalsIgnoreCase(msgParts[1])) {
+                List<String> words = new ArrayList<>(msgParts.length - 2);
+                for (int i = 2; i < msgParts.length; ++i) {
+                    words.add(msgParts[i].trim().toLowerCase());
+                }
+                sendMessageList(sender, ircConnector.writer.getTopicMessages(channel, words, MAX_TOPIC_RESULTS));
+            } else if ("today".equalsIgnoreCase(msgParts[1])) {
+                sendDayPage(sender, channel, TimeKeeper.today());
+            } else if ((msgParts.length >= 3) && "date".equalsIgnoreCase(msgParts[1])) {
+                sendDayPage(sender, channel, TimeKeeper.parseDay(msgParts[2]));
+            } else if ("more".equalsIgnoreCase(msgParts[1])) {
+                PagedQuery query = pendingQueries.remove(sender);
+                if (query != null) {
+                    sendMessagePage(sender, query, query.getPagingToken());
+                }
+            } else if ("last".equalsIgnoreCase(msgParts[1])) {
+                long now = System.currentTimeMillis();
+                List<Message> messages = ircConnector.writer.getMessages(channel, now - MAX_LOOKBACK_MILLIS, now + 1, lineCount(msgParts, 2), true);
+                Collections.reverse(messages);
+                sendGaps(sender, channel, messages.isEmpty() ? now - MAX_LOOKBACK_MILLIS : messages.get(0).getTime(), now + 1);
+                sendMessageList(sender, messages);
+            } else if ((msgParts.length >= 3) && "user".equalsIgnoreCase(msgParts[1])) {
+                List<Message> messages = ircConnector.writer.getUserMessages(channel, msgParts[2].trim(), 0, System.currentTimeMillis() + 1,
+                        lineCount(msgParts, 3));
+                Collections.reverse(messages);
+                if (!messages.isEmpty()) {
+                    sendGaps(sender, channel, messages.get(0).getTime(), System.currentTimeMillis() + 1);
+                }
+                sendMessageList(sender, messages);
+            } else if ((msgParts.length >= 4) && "between".equalsIgnoreCase(msgParts[1])) {
+                long day = ((msgParts.length >= 5) ? TimeKeeper.parseDay(msgParts[4]) : TimeKeeper.today()).getTime();
+                sendRange(sender, channel, TimeKeeper.atTime(day, msgParts[2]), TimeKeeper.atTime(day, msgParts[3]));
+            } else if ("since".equalsIgnoreCase(msgParts[1])) {
+                long now = System.currentTimeMillis();
+                long from;
+                if (msgParts.length >= 3) {
+                    from = TimeKeeper.atTime(now, msgParts[2]);
+                } else {
+                    Message last = ircConnector.writer.getLastMessage(channel, sender);
+                    if (last == null) {
+                        messagePoster.post(sender, "-- you haven't said anything here yet, say ~ since H:mm instead");
+                        return;
+                    }
+                    from = last.getTime() + 1;
+                }
+                sendRange(sender, channel, Math.max(from, now - MAX_LOOKBACK_MILLIS), now + 1);
+            } else if (("top".equalsIgnoreCase(msgParts[1]) || "trending".equalsIgnoreCase(msgParts[1])) && (ircConnector.trendingTracker != null)) {
+                int n = DEFAULT_TOP_WORDS;
+                if (msgParts.length >= 3) {
+                    n = Math.max(1, Math.min(MAX_TOP_WORDS, Integer.parseInt(msgParts[2].trim())));
+                }
+                List<TrendingTracker.WordCount> words = "top".equalsIgnoreCase(msgParts[1]) ? ircConnector.trendingTracker.top(channel, n)
+                        : ircConnector.trendingTracker.trending(channel, n);
+                sendWordCounts(sender, words);
+            }
+        } catch (CancellationException ce) {
+            IRCConnector.LOGGER.info("Command {} cancelled for user {} on channel {}", msgParts[1], sender, channel);
+        } catch (Exception e) {
+            Instrumentation.REGISTRY.meter(MetricRegistry.name(metric, "errors")).mark();
+            IRCConnector.LOGGER.error("Failed running command {} on channel {} for user {}", msgParts[1], channel, sender, e);
+        } finally {
+            timing.stop();
+        }
+    }
+
+    public void sendMessageList(String sender, Iterable<Message> msgs) {
+        StringBuilder line = new StringBuilder();
         for (Message m : msgs) {
-            messagePoster.post(sender, m.getSender() + ": " + DateFormat.getInstance().format(m.getTime()) + ": " + m.getMessage() + "\n");
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("sending messages to " + sender + " was cancelled");
+            }
+            line.setLength(0);
+            line.append(m.getSender()).append(": ");
+            TimeKeeper.appendTo(line, m.getTime()).append(": ").append(m.getMessage()).append('\n');
+            messagePoster.post(sender, line.toString());
         }
     }
 
-    @Override
-    protected void onDisconnect() {
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                long sleepTime = 2000;
-                while (!Thread.interrupted()) {
-                    try {
-                        Thread.sleep(sleepTime);
-                        sleepTime *= 1.5;
-                        if (sleepTime > 60000) {
-                            sleepTime = 60000;
-                        }
-
-                        CasBot.this.ircConnector.casBot.connect(CasBot.this.ircConnector.server);
-                        for (String channel : CasBot.this.ircConnector.channels) {
-                            if (!channel.startsWith("#")) {
-                                channel = '#' + channel;
-                            }
-                            CasBot.this.ircConnector.casBot.joinChannel(channel);
-                        }
-                        return;
-                    } catch (Exception e) {
-                    }
+    /**
+     * sends the oldest messages of a time range, asking for one more than is sent to tell whether there were more
+     */
+    private void sendRange(String sender, String channel, long from, long to) {
+        List<Message> messages = ircConnector.writer.getMessages(channel, from, to, MAX_HISTORY_LINES + 1, false);
+        sendGaps(sender, channel, from, to);
+        if (messages.size() > MAX_HISTORY_LINES) {
+            sendMessageList(sender, messages.subList(0, MAX_HISTORY_LINES));
+            messagePoster.post(sender, "-- only the first " + MAX_HISTORY_LINES + " messages were sent, narrow the range to see the rest");
+        } else {
+            sendMessageList(sender, messages);
+        }
+    }
+
+    /**
+     * tells a user when, within a range, a channel wasn't being recorded, so that missing messages aren't taken for a
+     * quiet channel
+     */
+    private void sendGaps(String sender, String channel, long from, long to) {
+        GapLog gapLog = ircConnector.gapLog;
+        if (gapLog == null) {
+            return;
+        }
+
+        List<long[]> gaps = gapLog.getGaps(channel, from, to);
+        StringBuilder line = new StringBuilder();
+        for (int i = Math.max(0, gaps.size() - MAX_GAP_LINES); i < gaps.size(); i++) {
+            line.setLength(0);
+            line.append("-- not recorded from ");
+            TimeKeeper.appendTo(line, gaps.get(i)[0]).append(" to ");
+            TimeKeeper.appendTo(line, gaps.get(i)[1]).append(", while disconnected");
+            messagePoster.post(sender, line.toString());
+        }
+        if (gaps.size() > MAX_GAP_LINES) {
+            messagePoster.post(sender, "-- and " + (gaps.size() - MAX_GAP_LINES) + " earlier gaps");
+        }
+    }
+
+    /**
+     * @return the number of lines asked for in a command's argument, within bounds, or the default if not given
+     */
+    private static int lineCount(String[] msgParts, int index) {
+        if (msgParts.length <= index) {
+            return DEFAULT_HISTORY_LINES;
+        }
+        return Math.max(1, Math.min(MAX_HISTORY_LINES, Integer.parseInt(msgParts[index].trim())));
+    }
+
+    private void sendWordCounts(String sender, List<TrendingTracker.WordCount> words) {
+        if (words.isEmpty()) {
+            messagePoster.post(sender, "-- nothing yet");
+            return;
+        }
+        StringBuilder response = new StringBuilder();
+        for (TrendingTracker.WordCount word : words) {
+            if (response.length() > 0) {
+                response.append(", ");
+            }
+            response.append(word);
+        }
+        messagePoster.post(sender, response.toString());
+    }
+
+    /**
+     * sends a page of a day's messages, from its archive if the day is over, so that old days aren't read row by row
+     * each time they are asked for
+     */
+    private void sendDayPage(String sender, final String channel, final Date day) {
+        sendGaps(sender, channel, day.getTime(), TimeKeeper.nextDay(day.getTime()));
+        final DayArchive archive = ircConnector.dayArchive;
+        if ((archive != null) && archive.isClosed(day.getTime())) {
+            sendMessagePage(sender, new PagedQuery() {
+                @Override
+                public MessagePage fetch(String pagingToken) {
+                    return archive.getMessages(channel, day.getTime(), PAGE_SIZE, pagingToken);
                 }
+            }, null);
+            return;
+        }
+
+        sendMessagePage(sender, new PagedQuery() {
+            @Override
+            public MessagePage fetch(String pagingToken) {
+                return ircConnector.writer.getMessages(channel, day, PAGE_SIZE, pagingToken);
             }
-        });
-        t.start();
+        }, null);
+    }
+
+    /**
+     * sends one page of a query's results, and if there are more, remembers where it left off so that ~ more can
+     * pick up from there
+     */
+    private void sendMessagePage(String sender, PagedQuery query, String pagingToken) {
+        MessagePage page = query.fetch(pagingToken);
+        sendMessageList(sender, page.getMessages());
+        if (page.hasMore()) {
+            query.setPagingToken(page.getPagingToken());
+            pendingQueries.put(sender, query);
+            messagePoster.post(sender, "-- more messages available, say ~ more to see them");
+        } else {
+            pendingQueries.remove(sender);
+        }
+    }
+
+    @Override
+    protected void onDisconnect() {
+        ircConnector.reconnect();
     }
 
+    private abstract static class PagedQuery {
+        private String pagingToken;
+
+        public abstract MessagePage fetch(String token);
+
+        public String getPagingToken() {
+            return pagingToken;
+        }
+
+        public void setPagingToken(String token) {
+            pagingToken = token;
+        }
+    }
 }
\ No newline at end of file
@@ -18,70 +18,413 @@
  */
 package com.mebigfatguy.roomstore;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import com.datastax.driver.core.LocalDate;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.exceptions.AlreadyExistsException;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * stores messages and answers queries against them.
+ * <p>
+ * Messages are partitioned by (channel, day) and topics by (channel, word, month), so no partition grows without
+ * bound, with topic_months listing the months each word has a bucket for. This is schema generation 2; generation 1
+ * partitioned messages by day and topics by channel or (channel, word). Until {@link SchemaMigration} has copied the
+ * old tables over, reads fall back to them as well.
+ */
+public class CassandraWriter implements MessageStore {
 
-public class CassandraWriter {
+    public static final int SCHEMA_GENERATION = 2;
+    public static final String TIMELINES_CHECKPOINT = "timelines";
 
     private static final String TOTAL_COUNTER = ":TOTAL:";
+    private static final String LEGACY_BUCKET = "legacy";
+    private static final String DAY_BUCKET = "day";
+    private static final int TOPIC_MONTH_CACHE_SIZE = 100000;
+    private static final int LIST_FETCH_SIZE = 5000;
+    private static final String KEYSPACE = "roomstore";
+    /**
+     * each table's name and how it is created, the first being the one whose absence means a new install
+     */
+    private static final String[][] TABLES = {
+            { "messages",
+                    "CREATE TABLE roomstore.messages (day timestamp, channel text, date_time timestamp, user text, message text, primary key(day, channel, date_time, user)) with compact storage and clustering order by (channel desc, date_time desc)" },
+            { "users",
+                    "CREATE TABLE roomstore.users (user text, channel text, last_seen_day timestamp, last_seen_date_time timestamp, primary key(user, channel))" },
+            { "topics",
+                    "CREATE TABLE roomstore.topics (channel text, word text, date_time timestamp, user text, primary key(channel, word, date_time)) with compact storage and clustering order by (word asc, date_time desc)" },
+            { "topic_messages",
+                    "CREATE TABLE roomstore.topic_messages (channel text, word text, date_time timestamp, user text, message text, primary key((channel, word), date_time, user)) with clustering order by (date_time desc, user asc)" },
+            { "topic_counters",
+                    "CREATE TABLE roomstore.topic_counters (prefix text, word text, count counter, primary key (prefix, word))" },
+            { "channel_messages",
+                    "CREATE TABLE roomstore.channel_messages (channel text, day timestamp, date_time timestamp, user text, message text, primary key((channel, day), date_time, user)) with clustering order by (date_time asc, user asc)" },
+            { "topic_buckets",
+                    "CREATE TABLE roomstore.topic_buckets (channel text, word text, month timestamp, date_time timestamp, user text, message text, primary key((channel, word, month), date_time, user)) with clustering order by (date_time desc, user asc)" },
+            { "topic_months",
+                    "CREATE TABLE roomstore.topic_months (channel text, word text, month timestamp, primary key((channel, word), month)) with clustering order by (month desc)" },
+            { "schema_generations",
+                    "CREATE TABLE roomstore.schema_generations (generation int primary key, migrated timestamp)" },
+            { "user_messages",
+                    "CREATE TABLE roomstore.user_messages (channel text, user text, date_time timestamp, message text, primary key((channel, user), date_time)) with clustering order by (date_time desc)" },
+            { "checkpoints",
+                    "CREATE TABLE roomstore.checkpoints (name text primary key, state blob, saved timestamp)" }
+    };
 
     private Session session;
     private PreparedStatement addMessagePS;
     private PreparedStatement setLastAccessPS;
     private PreparedStatement addTopicPS;
+    private PreparedStatement addTopicMonthPS;
+    private PreparedStatement getTopicMonthsPS;
     private PreparedStatement getLastAccessPS;
     private PreparedStatement getMessagePS;
     private PreparedStatement getMessagesOnDatePS;
-    private PreparedStatement getTopicEntriesPS;
+    private PreparedStatement countMessagesOnDatePS;
+    private PreparedStatement getTopicMessagesPS;
     private PreparedStatement getSpecificMessagePS;
     private PreparedStatement incrementCounterPS;
+    private PreparedStatement getLegacyMessagePS;
+    private PreparedStatement getLegacyMessagesOnDatePS;
+    private PreparedStatement countLegacyMessagesOnDatePS;
+    private PreparedStatement getLegacyTopicMessagesPS;
+    private PreparedStatement getMigratedPS;
+    private PreparedStatement setMigratedPS;
+    private PreparedStatement getMessagesInRangePS;
+    private PreparedStatement getMessagesInRangeDescPS;
+    private PreparedStatement getLegacyMessagesInRangePS;
+    private PreparedStatement getLegacyMessagesInRangeDescPS;
+    private PreparedStatement addUserMessagePS;
+    private PreparedStatement getUserMessagesPS;
+    private PreparedStatement saveCheckpointPS;
+    private PreparedStatement loadCheckpointPS;
+    private CounterAggregator counterAggregator;
+    private TopicQueryEngine topicQueryEngine;
+    private LastSeenCache lastSeenCache;
+    private TrendingTracker trendingTracker;
+    private VocabularyFilter vocabularyFilter;
+    private MessageTokenizer tokenizer = new MessageTokenizer();
+    private final Cache<String, Boolean> writtenTopicMonths = CacheBuilder.newBuilder().maximumSize(TOPIC_MONTH_CACHE_SIZE)
+            .expireAfterWrite(1, TimeUnit.HOURS).build();
+    private volatile boolean legacyReads;
+    private final StatementTimer statementTimer = new StatementTimer();
+    /**
+     * forgets which topic months have been written whenever a write fails, as the failed write may have been the one
+     * adding a month to topic_months, which would otherwise not be retried until its cache entry expired
+     */
+    private final FutureCallback<ResultSet> invalidateTopicMonthsOnFailure = new FutureCallback<ResultSet>() {
+        @Override
+        public void onSuccess(ResultSet rs) {
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            writtenTopicMonths.invalidateAll();
+        }
+    };
 
     public CassandraWriter(Session s, int replicationFactor) {
         session = s;
-        setUpSchema(replicationFactor);
-        setUpStatements();
+        session.getCluster().register(statementTimer);
+        boolean fresh = setUpSchema(replicationFactor);
+        List<ListenableFuture<PreparedStatement>> preparing = prepareStatements();
+        topicQueryEngine = new TopicQueryEngine(session, statementTimer);
+        Futures.getUnchecked(Futures.allAsList(preparing));
+        if (fresh) {
+            markMigrated();
+            markTimelinesBuilt();
+        } else {
+            legacyReads = session.execute(getMigratedPS.bind(Integer.valueOf(SCHEMA_GENERATION))).isExhausted();
+        }
+    }
+
+    Session getSession() {
+        return session;
     }
 
+    /**
+     * whether the generation 1 tables have been copied into the current ones, so reads no longer need to look at them
+     */
+    public boolean isMigrated() {
+        return !legacyReads;
+    }
+
+    /**
+     * records that the generation 1 tables have been copied, and stops reading them
+     */
+    public void markMigrated() {
+        session.execute(setMigratedPS.bind(Integer.valueOf(SCHEMA_GENERATION), new Date()));
+        legacyReads = false;
+    }
+
+    /**
+     * routes topic counter increments through an aggregator instead of writing them with each message
+     */
+    public void setCounterAggregator(CounterAggregator aggregator) {
+        counterAggregator = aggregator;
+    }
+
+    @Override
     public void addMessage(String channel, String sender, String message) {
+        IngestEntry entry = new IngestEntry(channel, sender, message, System.currentTimeMillis());
+        try {
+            for (Statement statement : buildIngestStatements(Collections.singletonList(entry))) {
+                session.execute(statement);
+            }
+        } catch (RuntimeException e) {
+            writtenTopicMonths.invalidateAll();
+            throw e;
+        }
+    }
+
+    /**
+     * sets how messages are split into indexed words, by default with the english stop words left out
+     */
+    @Override
+    public void setTokenizer(MessageTokenizer messageTokenizer) {
+        tokenizer = messageTokenizer;
+    }
+
+    @Override
+    public void setTrendingTracker(TrendingTracker tracker) {
+        trendingTracker = tracker;
+    }
+
+    @Override
+    public void saveCheckpoint(String name, byte[] state) {
+        session.execute(saveCheckpointPS.bind(name, ByteBuffer.wrap(state), new Date()));
+    }
 
-        Calendar dayCal = Calendar.getInstance();
-        Date dateTime = dayCal.getTime();
+    @Override
+    public byte[] loadCheckpoint(String name) {
+        Row row = session.execute(loadCheckpointPS.bind(name)).one();
+        if ((row == null) || row.isNull("state")) {
+            return null;
+        }
+        ByteBuffer state = row.getBytes("state");
+        byte[] bytes = new byte[state.remaining()];
+        state.get(bytes);
+        return bytes;
+    }
 
-        dayCal.set(Calendar.HOUR_OF_DAY, 0);
-        dayCal.set(Calendar.MINUTE, 0);
-        dayCal.set(Calendar.SECOND, 0);
-        dayCal.set(Calendar.MILLISECOND, 0);
-        Date day = dayCal.getTime();
+    /**
+     * adds each word indexed from now on to a filter, and answers topic queries for words not in it without reading
+     * anything, once it is complete
+     */
+    public void setVocabularyFilter(VocabularyFilter filter) {
+        vocabularyFilter = filter;
+    }
 
-        session.execute(addMessagePS.bind(day, channel, dateTime, sender, message));
-        session.execute(setLastAccessPS.bind(sender, channel, day, dateTime));
+    /**
+     * adds every word that has topic rows, in every channel, to a filter, reading only the partition keys of
+     * topic_months, and of topic_messages while it is still read
+     */
+    public void scanVocabulary(VocabularyFilter filter) {
+        List<String> tables = new ArrayList<>(2);
+        tables.add("topic_months");
+        if (legacyReads) {
+            tables.add("topic_messages");
+        }
 
-        long total = 0;
-        for (String word : message.split("\\s+|\\.|\\,|\\?|\\:|/")) {
-            if (word.length() > 0) {
-                word = word.toLowerCase();
-                session.execute(addTopicPS.bind(channel, word, dateTime, sender));
-                ++total;
-                session.execute(incrementCounterPS.bind(1L, String.valueOf(word.charAt(0)), word));
+        long words = 0;
+        for (String table : tables) {
+            Statement scan = session.newSimpleStatement("select distinct channel, word from roomstore." + table).setFetchSize(LIST_FETCH_SIZE);
+            for (Row row : session.execute(scan)) {
+                filter.add(row.getString("channel"), row.getString("word"));
+                words++;
             }
         }
+        IRCConnector.LOGGER.info("Scanned {} indexed words into the vocabulary filters", Long.valueOf(words));
+    }
+
+    /**
+     * answers last seen lookups from a cache that ingest keeps up to date
+     */
+    public void setLastSeenCache(LastSeenCache cache) {
+        lastSeenCache = cache;
+    }
 
-        if (total > 0) {
-            session.execute(incrementCounterPS.bind(total, TOTAL_COUNTER, TOTAL_COUNTER));
+    /**
+     * builds the statements needed to store a set of messages, grouped so that each statement only touches one
+     * partition. Message rows are batched by (channel, day), topic rows by (channel, word, month) and counter updates
+     * by prefix, all as unlogged batches, and only the latest last seen update per user and channel is kept. A word's
+     * month is added to topic_months the first time it is seen in a while. If a counter aggregator is set, counter
+     * increments are handed to it rather than returned.
+     */
+    public List<Statement> buildIngestStatements(List<IngestEntry> entries) {
+        return buildIngestStatements(entries, true, true);
+    }
+
+    /**
+     * builds the statements for the rows of a set of messages, their words, or both: the rows being the messages, user
+     * timelines and last seen, and the words being topics, topic months and counters
+     */
+    public List<Statement> buildIngestStatements(List<IngestEntry> entries, boolean rows, boolean words) {
+        Map<String, BatchStatement> messageBatches = new LinkedHashMap<>();
+        Map<String, BatchStatement> userBatches = new LinkedHashMap<>();
+        Map<String, Statement> lastAccesses = new LinkedHashMap<>();
+        Map<String, BatchStatement> topicBatches = new LinkedHashMap<>();
+        List<Statement> topicMonths = new ArrayList<>();
+        Map<String, Long> counts = new LinkedHashMap<>();
+
+        for (IngestEntry entry : entries) {
+            String channel = entry.getChannel();
+            String sender = entry.getSender();
+            Date dateTime = new Date(entry.getTimestamp());
+            Date day = TimeKeeper.dayOf(entry.getTimestamp());
+            Date month = TimeKeeper.monthOf(entry.getTimestamp());
+
+            if (rows) {
+                getBatch(messageBatches, channel + '\u0000' + day.getTime(), BatchStatement.Type.UNLOGGED)
+                        .add(addMessagePS.bind(channel, day, dateTime, sender, entry.getMessage()));
+                getBatch(userBatches, channel + '\u0000' + sender, BatchStatement.Type.UNLOGGED)
+                        .add(addUserMessagePS.bind(channel, sender, dateTime, entry.getMessage()));
+                lastAccesses.put(sender + '\u0000' + channel, setLastAccessPS.bind(sender, channel, day, dateTime,
+                        Long.valueOf(TimeUnit.MILLISECONDS.toMicros(entry.getTimestamp()))));
+                if (lastSeenCache != null) {
+                    lastSeenCache.update(entry);
+                }
+            }
+            if (!words) {
+                Instrumentation.recordIngest(channel, 0);
+                continue;
+            }
+
+            long total = tokenizer.tokenize(entry.getMessage(), word -> {
+                String bucket = channel + '\u0000' + word + '\u0000' + month.getTime();
+                BatchStatement batch = topicBatches.get(bucket);
+                if ((batch == null) && (writtenTopicMonths.getIfPresent(bucket) == null)) {
+                    writtenTopicMonths.put(bucket, Boolean.TRUE);
+                    topicMonths.add(addTopicMonthPS.bind(channel, word, month));
+                }
+                getBatch(topicBatches, bucket, BatchStatement.Type.UNLOGGED).add(addTopicPS.bind(channel, word, month, dateTime, sender, entry.getMessage()));
+                countWord(counts, word, 1L);
+                if (vocabularyFilter != null) {
+                    vocabularyFilter.add(channel, word);
+                }
+                if (trendingTracker != null) {
+                    trendingTracker.record(channel, word, entry.getTimestamp());
+                }
+            });
+
+            if (total > 0) {
+                countWord(counts, TOTAL_COUNTER, total);
+            }
+            if (rows) {
+                Instrumentation.recordIngest(channel, total);
+            } else {
+                Instrumentation.recordIndexed(channel, total);
+            }
+        }
+
+        List<Statement> statements = new ArrayList<>(
+                messageBatches.size() + userBatches.size() + lastAccesses.size() + topicBatches.size() + topicMonths.size() + counts.size());
+        addStatements(statements, messageBatches.values());
+        addStatements(statements, userBatches.values());
+        statements.addAll(lastAccesses.values());
+        addStatements(statements, topicBatches.values());
+        statements.addAll(topicMonths);
+        if (counterAggregator == null) {
+            statements.addAll(buildCounterStatements(counts));
+        }
+        return statements;
+    }
+
+    /**
+     * builds one counter update per word, batched by prefix
+     */
+    public List<Statement> buildCounterStatements(Map<String, Long> counts) {
+        Map<String, BatchStatement> counterBatches = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            String word = entry.getKey();
+            String prefix = counterPrefixOf(word);
+            getBatch(counterBatches, prefix, BatchStatement.Type.COUNTER).add(incrementCounterPS.bind(entry.getValue(), prefix, word));
         }
+
+        List<Statement> statements = new ArrayList<>(counterBatches.size());
+        addStatements(statements, counterBatches.values());
+        return statements;
+    }
+
+    /**
+     * @return the topic_counters partition a word's count is kept in, which buildCounterStatements batches by
+     */
+    public static String counterPrefixOf(String word) {
+        return TOTAL_COUNTER.equals(word) ? TOTAL_COUNTER : MessageTokenizer.prefixOf(word);
     }
 
+    @Override
+    public List<Write> buildWrites(List<IngestEntry> entries) {
+        return toWrites(buildIngestStatements(entries, true, true));
+    }
+
+    @Override
+    public List<Write> buildRawWrites(List<IngestEntry> entries) {
+        return toWrites(buildIngestStatements(entries, true, false));
+    }
+
+    @Override
+    public List<Write> buildIndexWrites(List<IngestEntry> entries) {
+        return toWrites(buildIngestStatements(entries, false, true));
+    }
+
+    private List<Write> toWrites(List<Statement> statements) {
+        List<Write> writes = new ArrayList<>(statements.size());
+        for (final Statement statement : statements) {
+            writes.add(() -> {
+                ResultSetFuture future = session.executeAsync(statement);
+                Futures.addCallback(future, invalidateTopicMonthsOnFailure, MoreExecutors.directExecutor());
+                return future;
+            });
+        }
+        return writes;
+    }
+
+    /**
+     * the session belongs to whoever opened it, so there is nothing to close here
+     */
+    @Override
+    public void close() {
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        return session.executeAsync(statement);
+    }
+
+    @Override
     public Message getLastMessage(String channel, String sender) {
 
+        if (lastSeenCache != null) {
+            Message cached = lastSeenCache.get(channel, sender);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         ResultSet rs = session.execute(getLastAccessPS.bind(sender, channel));
 
         if (rs.isExhausted()) {
@@ -89,108 +432,375 @@ public class CassandraWriter {
         }
 
         Row row = rs.one();
-        LocalDate day = row.getDate("last_seen_day");
-        LocalDate dateTime = row.getDate("last_seen_date_time");
+        Date day = row.getTimestamp("last_seen_day");
+        Date dateTime = row.getTimestamp("last_seen_date_time");
 
-        rs = session.execute(getMessagePS.bind(day, channel, dateTime, sender));
+        rs = session.execute(getMessagePS.bind(channel, day, dateTime, sender));
+        if (rs.isExhausted() && legacyReads) {
+            rs = session.execute(getLegacyMessagePS.bind(day, channel, dateTime, sender));
+        }
         if (!rs.isExhausted()) {
             row = rs.one();
-            return new Message(channel, sender, dateTime, row.getString("message"));
+            Message message = new Message(channel, sender, dateTime.getTime(), row.getString("message"));
+            if (lastSeenCache != null) {
+                lastSeenCache.update(message);
+            }
+            return message;
         }
 
         return null;
     }
 
+    @Override
     public List<Message> getMessages(String channel, Date day) {
+        return toList(dayScan(channel, day).iterator(session, LIST_FETCH_SIZE));
+    }
 
-        List<Message> messages = new ArrayList<>();
-        ResultSet rs = session.execute(getMessagesOnDatePS.bind(day, channel));
-        for (Row row : rs) {
-            Message m = new Message(channel, row.getString("user"), row.getDate("date_time"), row.getString("message"));
-            messages.add(0, m);
+    /**
+     * fetches at most limit messages from a day, oldest first, starting from where a previous page left off
+     *
+     * @param pagingToken
+     *            the token of the previous page, or null to start from the beginning of the day
+     */
+    @Override
+    public MessagePage getMessages(String channel, Date day, int limit, String pagingToken) {
+        return dayScan(channel, day).fetchPage(session, limit, pagingToken);
+    }
+
+    /**
+     * counts the rows of the day's partition, and of its generation 1 partition while that is still read, as a day scan
+     * reads both
+     */
+    @Override
+    public int countMessages(String channel, Date day) {
+        long count = session.execute(countMessagesOnDatePS.bind(channel, day)).one().getLong(0);
+        if (legacyReads) {
+            count += session.execute(countLegacyMessagesOnDatePS.bind(day, channel)).one().getLong(0);
+        }
+        return (int) count;
+    }
+
+    /**
+     * streams all the messages from a day, oldest first, fetching fetchSize rows at a time
+     */
+    public MessageIterator streamMessages(String channel, Date day, int fetchSize) {
+        return dayScan(channel, day).iterator(session, fetchSize);
+    }
+
+    /**
+     * reads only the days the range covers, and of each only the rows in the range, up to the number still wanted
+     */
+    @Override
+    public List<Message> getMessages(String channel, long from, long to, int limit, boolean newestFirst) {
+        List<Message> messages = new ArrayList<>(Math.min(limit, LIST_FETCH_SIZE));
+        if ((from >= to) || (limit <= 0)) {
+            return messages;
+        }
+
+        Date start = new Date(from);
+        Date end = new Date(to);
+        long firstDay = TimeKeeper.startOfDay(from);
+        long lastDay = TimeKeeper.startOfDay(to - 1);
+        List<Long> days = new ArrayList<>();
+        for (long day = firstDay; day <= lastDay; day = TimeKeeper.nextDay(day)) {
+            days.add(Long.valueOf(day));
+        }
+        if (newestFirst) {
+            Collections.reverse(days);
         }
 
+        for (Long dayStart : days) {
+            int wanted = limit - messages.size();
+            Date day = new Date(dayStart.longValue());
+            List<Message> dayMessages = new ArrayList<>();
+            PreparedStatement current = newestFirst ? getMessagesInRangeDescPS : getMessagesInRangePS;
+            for (Row row : session.execute(current.bind(channel, day, start, end, Integer.valueOf(wanted)))) {
+                dayMessages.add(toMessage(channel, row));
+            }
+            if (legacyReads) {
+                PreparedStatement legacy = newestFirst ? getLegacyMessagesInRangeDescPS : getLegacyMessagesInRangePS;
+                for (Row row : session.execute(legacy.bind(day, channel, start, end, Integer.valueOf(wanted)))) {
+                    dayMessages.add(toMessage(channel, row));
+                }
+                // rows may be in both tables while a migration is in progress
+                Set<Message> merged = newestFirst ? new TreeSet<>(Collections.reverseOrder()) : new TreeSet<Message>();
+                merged.addAll(dayMessages);
+                dayMessages = new ArrayList<>(merged);
+            }
+
+            messages.addAll((dayMessages.size() > wanted) ? dayMessages.subList(0, wanted) : dayMessages);
+            if (messages.size() >= limit) {
+                break;
+            }
+        }
         return messages;
     }
 
-    public Message getSpecificMessage(Date day, String channel, LocalDate date_time) {
-        ResultSet rs = session.execute(getSpecificMessagePS.bind(day, channel, date_time));
+    @Override
+    public List<Message> getUserMessages(String channel, String user, long from, long to, int limit) {
+        List<Message> messages = new ArrayList<>(Math.min(limit, LIST_FETCH_SIZE));
+        if ((from >= to) || (limit <= 0)) {
+            return messages;
+        }
+
+        for (Row row : session.execute(getUserMessagesPS.bind(channel, user, new Date(from), new Date(to), Integer.valueOf(limit)))) {
+            messages.add(new Message(channel, user, row.getTimestamp("date_time").getTime(), row.getString("message")));
+        }
+        return messages;
+    }
+
+    public Message getSpecificMessage(Date day, String channel, long dateTime) {
+        ResultSet rs = session.execute(getSpecificMessagePS.bind(channel, day, new Date(dateTime)));
         if (rs.isExhausted()) {
             return null;
         }
 
         Row row = rs.one();
-        return new Message(channel, row.getString("user"), date_time, row.getString("message"));
+        return new Message(channel, row.getString("user"), dateTime, row.getString("message"));
     }
 
+    @Override
     public List<Message> getTopicMessages(String channel, String word) {
-        Calendar cal = Calendar.getInstance();
-        List<Message> messages = new ArrayList<>();
-        ResultSet rs = session.execute(getTopicEntriesPS.bind(channel, word));
-        for (Row row : rs) {
-            LocalDate date_time = row.getDate("date_time");
+        if (!mightBeIndexed(channel, word)) {
+            return new ArrayList<>();
+        }
+        return toList(topicScan(channel, word).iterator(session, LIST_FETCH_SIZE));
+    }
 
-            cal.setTime(new Date(date_time.getMillisSinceEpoch()));
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
+    /**
+     * fetches at most limit topic messages, newest first, starting from where a previous page left off
+     *
+     * @param pagingToken
+     *            the token of the previous page, or null to start from the newest message
+     */
+    @Override
+    public MessagePage getTopicMessages(String channel, String word, int limit, String pagingToken) {
+        if (!mightBeIndexed(channel, word)) {
+            return new MessagePage(new ArrayList<Message>(), null);
+        }
+        return topicScan(channel, word).fetchPage(session, limit, pagingToken);
+    }
 
-            Date day = cal.getTime();
+    /**
+     * streams all the messages that mention a word, newest first, fetching fetchSize rows at a time
+     */
+    public MessageIterator streamTopicMessages(String channel, String word, int fetchSize) {
+        return topicScan(channel, word).iterator(session, fetchSize);
+    }
 
-            Message m = getSpecificMessage(day, channel, date_time);
-            if (m != null) {
-                messages.add(m);
+    /**
+     * returns up to limit messages, newest first, that mention all of the words, reading nothing if any of them was
+     * never said in the channel
+     */
+    @Override
+    public List<Message> getTopicMessages(String channel, List<String> words, int limit) {
+        List<String> indexedWords = new ArrayList<>(words.size());
+        for (String word : words) {
+            if (tokenizer.isIndexed(word)) {
+                if (!mightBeIndexed(channel, word)) {
+                    return new ArrayList<>();
+                }
+                indexedWords.add(word);
             }
         }
+        return topicQueryEngine.getTopicMessages(channel, indexedWords, limit, legacyReads);
+    }
+
+    private boolean mightBeIndexed(String channel, String word) {
+        return (vocabularyFilter == null) || vocabularyFilter.mightContain(channel, word);
+    }
+
+    /**
+     * a day's messages, oldest first, from the generation 1 table if it is still being read, then the current one
+     */
+    private BucketScan dayScan(String channel, Date day) {
+        BucketScan scan = new BucketScan(channel);
+        if (legacyReads) {
+            scan.add(LEGACY_BUCKET, getLegacyMessagesOnDatePS.bind(day, channel));
+        }
+        return scan.add(DAY_BUCKET, getMessagesOnDatePS.bind(channel, day));
+    }
+
+    /**
+     * a word's messages, newest first, across its monthly buckets, then the generation 1 table if it is still being
+     * read
+     */
+    private BucketScan topicScan(String channel, String word) {
+        BucketScan scan = new BucketScan(channel);
+        for (Row row : session.execute(getTopicMonthsPS.bind(channel, word))) {
+            Date month = row.getTimestamp("month");
+            scan.add(String.valueOf(month.getTime()), getTopicMessagesPS.bind(channel, word, month));
+        }
+        if (legacyReads) {
+            scan.add(LEGACY_BUCKET, getLegacyTopicMessagesPS.bind(channel, word));
+        }
+        return scan;
+    }
 
+    private static List<Message> toList(MessageIterator it) {
+        List<Message> messages = new ArrayList<>();
+        while (it.hasNext()) {
+            messages.add(it.next());
+        }
         return messages;
     }
 
-    private void setUpSchema(int replicationFactor) {
+    static Message toMessage(String channel, Row row) {
+        return new Message(channel, row.getString("user"), row.getTimestamp("date_time").getTime(), row.getString("message"));
+    }
 
-        try {
-            session.execute(
-                    String.format("CREATE KEYSPACE roomstore WITH replication = { 'class' : 'SimpleStrategy', 'replication_factor' : %d }", replicationFactor));
-        } catch (AlreadyExistsException aee) {
-        } finally {
-            session.execute("use roomstore");
+    private void countWord(Map<String, Long> counts, String word, long delta) {
+        if (counterAggregator != null) {
+            counterAggregator.increment(word, delta);
+        } else {
+            Long count = counts.get(word);
+            counts.put(word, Long.valueOf(count == null ? delta : count.longValue() + delta));
         }
+    }
 
-        try {
-            session.execute(
-                    "CREATE TABLE roomstore.messages (day timestamp, channel text, date_time timestamp, user text, message text, primary key(day, channel, date_time, user)) with compact storage and clustering order by (channel desc, date_time desc)");
-        } catch (AlreadyExistsException aee) {
+    private static BatchStatement getBatch(Map<String, BatchStatement> batches, String key, BatchStatement.Type type) {
+        BatchStatement batch = batches.get(key);
+        if (batch == null) {
+            batch = new BatchStatement(type);
+            batches.put(key, batch);
         }
+        return batch;
+    }
 
-        try {
-            session.execute(
-                    "CREATE TABLE roomstore.users (user text, channel text, last_seen_day timestamp, last_seen_date_time timestamp, primary key(user, channel))");
-        } catch (AlreadyExistsException aee) {
+    /**
+     * adds the batches to the statement list, unwrapping batches of one as there is no point paying for the batch
+     */
+    private static void addStatements(List<Statement> statements, Collection<BatchStatement> batches) {
+        for (BatchStatement batch : batches) {
+            if (batch.size() == 1) {
+                statements.add(batch.getStatements().iterator().next());
+            } else {
+                statements.add(batch);
+            }
         }
+    }
 
-        try {
-            session.execute(
-                    "CREATE TABLE roomstore.topics (channel text, word text, date_time timestamp, user text, primary key(channel, word, date_time)) with compact storage and clustering order by (word asc, date_time desc)");
-        } catch (AlreadyExistsException aee) {
+    /**
+     * whether every message has been added to the per user timelines, which installs migrated before timelines existed
+     * haven't
+     */
+    public boolean hasTimelines() {
+        return loadCheckpoint(TIMELINES_CHECKPOINT) != null;
+    }
+
+    /**
+     * records that every message recorded so far is in the per user timelines, new ones being added as they are written
+     */
+    public void markTimelinesBuilt() {
+        saveCheckpoint(TIMELINES_CHECKPOINT, new byte[0]);
+    }
+
+    /**
+     * creates whatever tables are missing, going by the cluster metadata the driver read on connecting, so that starting
+     * against an existing schema makes no requests at all
+     *
+     * @return whether this is a new install, with no generation 1 data to migrate
+     */
+    private boolean setUpSchema(int replicationFactor) {
+        KeyspaceMetadata keyspace = session.getCluster().getMetadata().getKeyspace(KEYSPACE);
+        if (keyspace == null) {
+            try {
+                session.execute(String.format("CREATE KEYSPACE " + KEYSPACE
+                        + " WITH replication = { 'class' : 'SimpleStrategy', 'replication_factor' : %d }", Integer.valueOf(replicationFactor)));
+            } catch (AlreadyExistsException aee) {
+            }
         }
 
-        try {
-            session.execute("CREATE TABLE roomstore.topic_counters (prefix text, word text, count counter, primary key (prefix, word))");
-        } catch (AlreadyExistsException aee) {
+        boolean fresh = false;
+        for (String[] table : TABLES) {
+            if ((keyspace == null) || (keyspace.getTable(table[0]) == null)) {
+                try {
+                    session.execute(table[1]);
+                    if (table == TABLES[0]) {
+                        fresh = true;
+                    }
+                } catch (AlreadyExistsException aee) {
+                }
+            }
         }
+
+        return fresh;
     }
 
-    private void setUpStatements() {
+    /**
+     * starts preparing every statement at once, rather than waiting for each in turn
+     *
+     * @return the statements being prepared, each of which sets its field once it is
+     */
+    private List<ListenableFuture<PreparedStatement>> prepareStatements() {
+        List<ListenableFuture<PreparedStatement>> preparing = new ArrayList<>();
+        prepare(preparing, "addMessage", "insert into roomstore.channel_messages (channel, day, date_time, user, message) values (?,?,?,?,?)",
+                ps -> addMessagePS = ps);
+        prepare(preparing, "setLastAccess",
+                "insert into roomstore.users (user, channel, last_seen_day, last_seen_date_time) values (?,?,?,?) using timestamp ?",
+                ps -> setLastAccessPS = ps);
+        prepare(preparing, "addTopic",
+                "insert into roomstore.topic_buckets (channel, word, month, date_time, user, message) values (?, ?, ?, ?, ?, ?)",
+                ps -> addTopicPS = ps);
+        prepare(preparing, "addTopicMonth", "insert into roomstore.topic_months (channel, word, month) values (?, ?, ?)", ps -> addTopicMonthPS = ps);
+        prepare(preparing, "getTopicMonths", "select month from roomstore.topic_months where channel = ? and word = ?", ps -> getTopicMonthsPS = ps);
+        prepare(preparing, "getLastAccess", "select last_seen_day, last_seen_date_time from roomstore.users where user = ? and channel = ?",
+                ps -> getLastAccessPS = ps);
+        prepare(preparing, "getMessage",
+                "select message from roomstore.channel_messages where channel = ? and day = ? and date_time = ? and user = ?",
+                ps -> getMessagePS = ps);
+        prepare(preparing, "getMessagesOnDate",
+                "select user, date_time, message from roomstore.channel_messages where channel = ? and day = ?", ps -> getMessagesOnDatePS = ps);
+        prepare(preparing, "countMessagesOnDate", "select count(*) from roomstore.channel_messages where channel = ? and day = ?",
+                ps -> countMessagesOnDatePS = ps);
+        prepare(preparing, "getMessagesInRange",
+                "select user, date_time, message from roomstore.channel_messages where channel = ? and day = ? and date_time >= ? and date_time < ? limit ?",
+                ps -> getMessagesInRangePS = ps);
+        prepare(preparing, "getMessagesInRangeDesc", "select user, date_time, message from roomstore.channel_messages"
+                + " where channel = ? and day = ? and date_time >= ? and date_time < ? order by date_time desc limit ?",
+                ps -> getMessagesInRangeDescPS = ps);
+        prepare(preparing, "getLegacyMessagesInRange", "select user, date_time, message from roomstore.messages"
+                + " where day = ? and channel = ? and date_time >= ? and date_time < ? order by channel asc, date_time asc limit ?",
+                ps -> getLegacyMessagesInRangePS = ps);
+        prepare(preparing, "getLegacyMessagesInRangeDesc",
+                "select user, date_time, message from roomstore.messages where day = ? and channel = ? and date_time >= ? and date_time < ? limit ?",
+                ps -> getLegacyMessagesInRangeDescPS = ps);
+        prepare(preparing, "addUserMessage", "insert into roomstore.user_messages (channel, user, date_time, message) values (?, ?, ?, ?)",
+                ps -> addUserMessagePS = ps);
+        prepare(preparing, "getUserMessages",
+                "select date_time, message from roomstore.user_messages where channel = ? and user = ? and date_time >= ? and date_time < ? limit ?",
+                ps -> getUserMessagesPS = ps);
+        prepare(preparing, "getTopicMessages",
+                "select date_time, user, message from roomstore.topic_buckets where channel = ? and word = ? and month = ?",
+                ps -> getTopicMessagesPS = ps);
+        prepare(preparing, "getSpecificMessage",
+                "select message, user from roomstore.channel_messages where channel = ? and day = ? and date_time = ?",
+                ps -> getSpecificMessagePS = ps);
+        prepare(preparing, "incrementCounter", "update roomstore.topic_counters set count = count + ? where prefix = ? and word = ?",
+                ps -> incrementCounterPS = ps);
+        prepare(preparing, "getLegacyMessage",
+                "select message from roomstore.messages where day = ? and channel = ? and date_time = ? and user = ?", ps -> getLegacyMessagePS = ps);
+        prepare(preparing, "getLegacyMessagesOnDate",
+                "select user, date_time, message from roomstore.messages where day = ? and channel = ? order by channel asc, date_time asc",
+                ps -> getLegacyMessagesOnDatePS = ps);
+        prepare(preparing, "countLegacyMessagesOnDate", "select count(*) from roomstore.messages where day = ? and channel = ?",
+                ps -> countLegacyMessagesOnDatePS = ps);
+        prepare(preparing, "getLegacyTopicMessages",
+                "select date_time, user, message from roomstore.topic_messages where channel = ? and word = ?", ps -> getLegacyTopicMessagesPS = ps);
+        prepare(preparing, "getMigrated", "select migrated from roomstore.schema_generations where generation = ?", ps -> getMigratedPS = ps);
+        prepare(preparing, "setMigrated", "insert into roomstore.schema_generations (generation, migrated) values (?, ?)", ps -> setMigratedPS = ps);
+        prepare(preparing, "saveCheckpoint", "insert into roomstore.checkpoints (name, state, saved) values (?, ?, ?)", ps -> saveCheckpointPS = ps);
+        prepare(preparing, "loadCheckpoint", "select state from roomstore.checkpoints where name = ?", ps -> loadCheckpointPS = ps);
+        return preparing;
+    }
 
-        addMessagePS = session.prepare("insert into roomstore.messages (day, channel, date_time, user, message) values (?,?,?,?,?)");
-        setLastAccessPS = session.prepare("insert into roomstore.users (user, channel, last_seen_day, last_seen_date_time) values (?,?,?,?)");
-        addTopicPS = session.prepare("insert into roomstore.topics (channel, word, date_time, user) values (?, ?, ?, ?)");
-        getLastAccessPS = session.prepare("select last_seen_day, last_seen_date_time from roomstore.users where user = ? and channel = ?");
-        getMessagePS = session.prepare("select message from roomstore.messages where day = ? and channel = ? and date_time = ? and user = ?");
-        getMessagesOnDatePS = session.prepare("select user, date_time, message from roomstore.messages where day = ? and channel = ?");
-        getTopicEntriesPS = session.prepare("select date_time, user from roomstore.topics where channel = ? and word = ?");
-        getSpecificMessagePS = session.prepare("select message, user from roomstore.messages where day = ? and channel = ? and date_time = ?");
-        incrementCounterPS = session.prepare("update roomstore.topic_counters set count = count + ? where prefix = ? and word = ?");
+    private void prepare(List<ListenableFuture<PreparedStatement>> preparing, final String name, String cql, final Consumer<PreparedStatement> field) {
+        preparing.add(Futures.transform(session.prepareAsync(cql), new Function<PreparedStatement, PreparedStatement>() {
+            @Override
+            public PreparedStatement apply(PreparedStatement statement) {
+                field.accept(statementTimer.name(name, statement));
+                return statement;
+            }
+        }, MoreExecutors.directExecutor()));
     }
 }
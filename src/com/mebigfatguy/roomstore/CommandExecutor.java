@@ -0,0 +1,223 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * runs ~ commands away from the irc event thread, so that slow queries never hold up pings or the recording of other
+ * messages. Each user may only have a few commands running at once, and commands that run past the timeout are
+ * interrupted, as are a user's commands when they ask to stop. Users are told apart by a key that includes their
+ * network, as the same nick on two networks is rarely the same person, and are only tracked while they have commands
+ * running.
+ */
+public class CommandExecutor {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_PER_USER = 2;
+    public static final long DEFAULT_TIMEOUT_SECONDS = 60;
+
+    private static final long SHUTDOWN_SECONDS = 10;
+
+    private final ExecutorService executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final int maxPerUser;
+    private final long timeoutMillis;
+    private final ConcurrentMap<String, Set<CommandTask>> running = new ConcurrentHashMap<>();
+    private final AtomicInteger timedOut = new AtomicInteger();
+
+    /**
+     * @param threads
+     *            the size of the command pool, or 0 to use a virtual thread per command where the jvm supports them
+     */
+    public CommandExecutor(int threads, int userLimit, long timeoutSeconds) {
+        executor = (threads <= 0) ? createVirtualThreadExecutor() : Executors.newFixedThreadPool(threads, new NamedThreadFactory("Command"));
+        timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("CommandTimer"));
+        timer.setRemoveOnCancelPolicy(true);
+        maxPerUser = Math.max(1, userLimit);
+        timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+    }
+
+    /**
+     * queues a command for a user
+     *
+     * @param user
+     *            the user's nick, qualified by their network
+     * @return false if the user already has too many commands running
+     */
+    public boolean submit(final String user, Runnable command) {
+        final CommandTask task = new CommandTask(command, user);
+        Set<CommandTask> userCommands = running.compute(user, (u, tasks) -> {
+            Set<CommandTask> commands = (tasks == null) ? ConcurrentHashMap.<CommandTask> newKeySet() : tasks;
+            if (commands.size() < maxPerUser) {
+                commands.add(task);
+            }
+            return commands;
+        });
+        if (!userCommands.contains(task)) {
+            return false;
+        }
+
+        try {
+            task.setFuture(executor.submit(task));
+            task.setTimeout(timer.schedule(() -> {
+                if (task.cancel()) {
+                    timedOut.incrementAndGet();
+                    IRCConnector.LOGGER.info("Command for user {} timed out", user);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS));
+            return true;
+        } catch (RejectedExecutionException ree) {
+            task.finished();
+            return false;
+        }
+    }
+
+    /**
+     * interrupts all of a user's commands
+     */
+    public void cancel(String user) {
+        Set<CommandTask> userCommands = running.get(user);
+        if (userCommands != null) {
+            for (CommandTask task : userCommands) {
+                task.cancel();
+            }
+        }
+    }
+
+    public int getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * uses Executors.newVirtualThreadPerTaskExecutor when running on a jvm that has it, through reflection as the code
+     * is compiled for older jvms, and otherwise falls back to a default sized pool
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            IRCConnector.LOGGER.info("Virtual threads are not available, using a pool of {} command threads", DEFAULT_THREADS);
+            return Executors.newFixedThreadPool(DEFAULT_THREADS, new NamedThreadFactory("Command"));
+        }
+    }
+
+    private class CommandTask implements Runnable {
+        private final Runnable command;
+        private final String user;
+        private volatile Future<?> future;
+        private volatile ScheduledFuture<?> timeout;
+        private volatile boolean done;
+
+        CommandTask(Runnable cmd, String userKey) {
+            command = cmd;
+            user = userKey;
+        }
+
+        void setFuture(Future<?> f) {
+            future = f;
+        }
+
+        /**
+         * holds the timeout, which is cancelled once the command is over, rather than left queued for the whole timeout
+         */
+        void setTimeout(ScheduledFuture<?> t) {
+            timeout = t;
+            if (done) {
+                t.cancel(false);
+            }
+        }
+
+        /**
+         * stops counting the command against its user, forgetting the user once they have none left
+         */
+        void finished() {
+            done = true;
+            running.computeIfPresent(user, (u, tasks) -> {
+                tasks.remove(this);
+                return tasks.isEmpty() ? null : tasks;
+            });
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+
+        /**
+         * interrupts the command, or stops it from starting, in which case run will never clean up after it
+         */
+        boolean cancel() {
+            Future<?> f = future;
+            if ((f != null) && f.cancel(true)) {
+                finished();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                command.run();
+            } finally {
+                finished();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String threadName) {
+            name = threadName;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setName(name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * sums topic_counters increments in memory, and writes them out as one update per distinct word, either periodically or
+ * once enough distinct words have piled up. The deltas live in a ConcurrentHashMap, whose per bin locking keeps ingest
+ * workers from contending with each other or with the flusher, and whose atomic remove lets a flush take a word's delta
+ * without losing increments that race with it.
+ * <p>
+ * A flush sends one update per counter partition. An update that fails because no node could take it, which means none
+ * of it was applied, has its deltas merged back to go out with a later flush, so an outage holds counts in memory
+ * rather than losing them. Any other failed update, such as one that timed out and may or may not have been applied,
+ * loses its counts, as sending them again could count them twice, as do counts still held back when roomstore stops.
+ */
+public class CounterAggregator {
+
+    public static final long DEFAULT_FLUSH_MILLIS = 10000;
+    public static final int DEFAULT_FLUSH_THRESHOLD = 10000;
+
+    private static final long SHUTDOWN_MILLIS = 30000;
+
+    private final CassandraWriter writer;
+    private final ConcurrentMap<String, Long> deltas = new ConcurrentHashMap<>();
+    private final long flushMillis;
+    private final int flushThreshold;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final AtomicLong increments = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long heldBackUntil;
+    private ScheduledExecutorService flusher;
+
+    public CounterAggregator(CassandraWriter cassandraWriter, long flushIntervalMillis, int flushDistinctThreshold) {
+        writer = cassandraWriter;
+        flushMillis = flushIntervalMillis;
+        flushThreshold = flushDistinctThreshold;
+    }
+
+    public synchronized void startAggregating() {
+        Instrumentation.gauge("counters.pending", () -> Integer.valueOf(getPendingCount()));
+        Instrumentation.gauge("counters.increments", () -> Long.valueOf(getIncrementCount()));
+        Instrumentation.gauge("counters.updates", () -> Long.valueOf(getUpdateCount()));
+        Instrumentation.gauge("counters.failures", () -> Long.valueOf(getFailureCount()));
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setName("CounterFlusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * records an increment that would otherwise have been sent to cassandra on its own
+     */
+    public void increment(String word, long delta) {
+        deltas.merge(word, Long.valueOf(delta), Long::sum);
+        increments.incrementAndGet();
+
+        // while counts are being held back, flushing early would only fail again
+        if ((deltas.size() >= flushThreshold) && (System.currentTimeMillis() >= heldBackUntil) && flushPending.compareAndSet(false, true)) {
+            ScheduledExecutorService f = flusher;
+            if (f != null) {
+                f.execute(this::flushQuietly);
+            } else {
+                flushPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * writes out all the pending deltas, and waits for the writes to complete
+     */
+    public void flush() {
+        for (Pair<ResultSetFuture, Map<String, Long>> update : sendDeltas()) {
+            try {
+                update.getKey().getUninterruptibly();
+            } catch (RuntimeException e) {
+                failed(update.getValue(), e);
+            }
+        }
+    }
+
+    /**
+     * stops the periodic flushing, and writes out whatever is left
+     */
+    public void stopAggregating() {
+        ScheduledExecutorService f;
+        synchronized (this) {
+            f = flusher;
+            flusher = null;
+        }
+
+        if (f != null) {
+            f.shutdown();
+            try {
+                f.awaitTermination(SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+        if (!deltas.isEmpty()) {
+            IRCConnector.LOGGER.error("Stopped with the counts of {} words not written", Integer.valueOf(deltas.size()));
+        }
+        IRCConnector.LOGGER.info("Wrote {} topic counter increments as {} updates", increments.get(), updates.get());
+    }
+
+    public int getPendingCount() {
+        return deltas.size();
+    }
+
+    public long getIncrementCount() {
+        return increments.get();
+    }
+
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    public long getSavedWriteCount() {
+        return increments.get() - updates.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    private void flushQuietly() {
+        flushPending.set(false);
+        for (final Pair<ResultSetFuture, Map<String, Long>> update : sendDeltas()) {
+            Futures.addCallback(update.getKey(), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed(update.getValue(), t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    /**
+     * counts a failed update, and if none of it can have been applied, merges its deltas back for the next flush
+     */
+    private void failed(Map<String, Long> counts, Throwable t) {
+        failures.incrementAndGet();
+        if ((t instanceof NoHostAvailableException) || (t instanceof UnavailableException)) {
+            for (Map.Entry<String, Long> count : counts.entrySet()) {
+                deltas.merge(count.getKey(), count.getValue(), Long::sum);
+            }
+            updates.addAndGet(-counts.size());
+            heldBackUntil = System.currentTimeMillis() + flushMillis;
+            IRCConnector.LOGGER.warn("Cassandra is unavailable, holding the counts of {} words for the next flush", Integer.valueOf(counts.size()),
+                    t);
+        } else {
+            IRCConnector.LOGGER.error("Failed flushing topic counters, losing the counts of {} words", Integer.valueOf(counts.size()), t);
+        }
+    }
+
+    /**
+     * takes every pending delta and sends them as one update per counter partition
+     *
+     * @return each update's future, along with the deltas it carries
+     */
+    private List<Pair<ResultSetFuture, Map<String, Long>>> sendDeltas() {
+        Map<String, Long> pending = new HashMap<>(deltas.size());
+        for (String word : deltas.keySet()) {
+            Long delta = deltas.remove(word);
+            if (delta != null) {
+                pending.put(word, delta);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        updates.addAndGet(pending.size());
+        Map<String, Map<String, Long>> partitions = new HashMap<>();
+        for (Map.Entry<String, Long> delta : pending.entrySet()) {
+            partitions.computeIfAbsent(CassandraWriter.counterPrefixOf(delta.getKey()), p -> new HashMap<>()).put(delta.getKey(), delta.getValue());
+        }
+
+        List<Pair<ResultSetFuture, Map<String, Long>>> sent = new ArrayList<>(partitions.size());
+        for (Map<String, Long> counts : partitions.values()) {
+            try {
+                // a single partition's counts build a single statement
+                for (Statement statement : writer.buildCounterStatements(counts)) {
+                    sent.add(new Pair<>(writer.executeAsync(statement), counts));
+                }
+            } catch (RuntimeException e) {
+                failed(counts, e);
+            }
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.xerial.snappy.Snappy;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * sealed copies of days that are over, so that ~ date and exports of old days read one compressed file instead of
+ * reading and reformatting a partition row by row on every request.
+ * <p>
+ * Each (channel, day) is kept in a file, channel/yyyy-MM-dd.day under the archive directory, of
+ *
+ * <pre>
+ * int magic, int version, long length, long dayStart, int count, utf channel, int blocks,
+ * blocks * (long offset, int length),
+ * blocks * snappy compressed (long timestamp, utf sender, utf message) * up to 256
+ * </pre>
+ *
+ * where the utf strings are an unsigned short byte count followed by utf-8 bytes, length is that of the whole archive
+ * and offsets are from its start, so an export, which is archives written back to back, can be split up again. A
+ * message's ordinal in the day picks its block, so a page decompresses only the blocks it returns, and paging tokens
+ * are just the ordinal of the next message. Archives are written to a temporary file and moved into place, and are only
+ * ever replaced whole, so they are read through memory maps and exported with transferTo, straight from the page cache.
+ * <p>
+ * A day is sealed once it has been over for a grace period, for messages still waiting in the ingest queue or spool,
+ * either in the background for the last few days, or the first time it is asked for. Days without messages aren't
+ * sealed, so asking for a day before a channel was recorded leaves nothing behind. Messages can still land on a sealed
+ * day, replayed from the spool, indexed late or imported, so before a day is read from the start or exported the store
+ * is asked how many messages it has, and the day is sealed again if that isn't how many its archive holds.
+ */
+public class DayArchive {
+
+    public static final int MAGIC = 0x52534441;
+    public static final int VERSION = 1;
+    public static final int BLOCK_MESSAGES = 256;
+    public static final long DEFAULT_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_SEAL_DAYS = 2;
+    public static final String FILE_SUFFIX = ".day";
+
+    private static final long SEAL_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final File directory;
+    private final MessageStore store;
+    private final long graceMillis;
+    private final Timer sealTimer = Instrumentation.REGISTRY.timer("archive.seal");
+    private final Meter pageReads = Instrumentation.REGISTRY.meter("archive.pages");
+    private final Meter exportedBytes = Instrumentation.REGISTRY.meter("archive.exported");
+    private final Meter resealed = Instrumentation.REGISTRY.meter("archive.resealed");
+    private ScheduledExecutorService sealer;
+
+    /**
+     * @param grace
+     *            milliseconds after midnight before the day that ended is sealed
+     */
+    public DayArchive(File archiveDirectory, MessageStore messageStore, long grace) throws IOException {
+        directory = archiveDirectory;
+        store = messageStore;
+        graceMillis = grace;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create archive directory " + directory);
+        }
+    }
+
+    /**
+     * @return whether a day has been over long enough to be sealed
+     */
+    public boolean isClosed(long dayStart) {
+        return System.currentTimeMillis() >= (TimeKeeper.nextDay(dayStart) + graceMillis);
+    }
+
+    public boolean isSealed(String channel, long dayStart) {
+        return fileOf(channel, dayStart).isFile();
+    }
+
+    /**
+     * archives a day's messages, unless it isn't over yet, has no messages, or is already archived with as many
+     * messages as the store has for it
+     *
+     * @return whether the day is archived
+     */
+    public boolean seal(String channel, long dayStart) throws IOException {
+        if (!isClosed(dayStart)) {
+            return false;
+        }
+
+        File archive = fileOf(channel, dayStart);
+        int stored = store.countMessages(channel, new Date(dayStart));
+        if (archive.isFile()) {
+            if (countOf(archive) == stored) {
+                return true;
+            }
+            IRCConnector.LOGGER.info("Resealing {} of {}, as messages were written to it after it was sealed", TimeKeeper.dayName(dayStart),
+                    channel);
+            resealed.mark();
+        }
+        if (stored == 0) {
+            Files.deleteIfExists(archive.toPath());
+            return false;
+        }
+
+        File channelDirectory = archive.getParentFile();
+        if (!channelDirectory.isDirectory() && !channelDirectory.mkdirs()) {
+            throw new IOException("Unable to create archive directory " + channelDirectory);
+        }
+
+        Timer.Context timing = sealTimer.time();
+        Path temp = Files.createTempFile(channelDirectory.toPath(), archive.getName(), ".tmp");
+        try {
+            List<Message> messages = store.getMessages(channel, new Date(dayStart));
+            if (messages.isEmpty()) {
+                Files.deleteIfExists(archive.toPath());
+                return false;
+            }
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                write(out, channel, dayStart, messages);
+                out.force(true);
+            }
+            Files.move(temp, archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+            timing.stop();
+        }
+    }
+
+    /**
+     * fetches at most limit messages of a day that is over, oldest first, from its archive, sealing it first if need be,
+     * or again if messages were written to it since. Later pages are read from the archive the first one was.
+     *
+     * @param pagingToken
+     *            the token of the previous page, or null to start from the beginning of the day
+     */
+    public MessagePage getMessages(String channel, long dayStart, int limit, String pagingToken) {
+        if (!isClosed(dayStart)) {
+            throw new IllegalStateException("Day " + TimeKeeper.dayName(dayStart) + " of " + channel + " isn't over yet");
+        }
+        try {
+            File archive = fileOf(channel, dayStart);
+            boolean sealed = ((pagingToken != null) && archive.isFile()) || seal(channel, dayStart);
+            if (!sealed) {
+                return new MessagePage(new ArrayList<Message>(), null);
+            }
+            pageReads.mark();
+            return readPage(map(archive), channel, (pagingToken == null) ? 0 : Integer.parseInt(pagingToken), limit);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed reading archive of " + TimeKeeper.dayName(dayStart) + " of " + channel, ioe);
+        }
+    }
+
+    /**
+     * copies a day's archive as it is to a channel, sealing it first if need be, or again if messages were written to it
+     * since, without passing it through the heap when the target is a file or socket
+     *
+     * @return the number of bytes copied, or 0 if the day isn't over yet or has no messages
+     */
+    public long transferTo(String channel, long dayStart, WritableByteChannel target) throws IOException {
+        if (!seal(channel, dayStart)) {
+            return 0;
+        }
+
+        try (FileChannel in = FileChannel.open(fileOf(channel, dayStart).toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, target);
+            }
+            exportedBytes.mark(size);
+            return size;
+        }
+    }
+
+    /**
+     * copies the archives of a range of days, both included, back to back to a channel, skipping days that aren't over
+     * or have no messages
+     *
+     * @return the number of days copied
+     */
+    public int export(String channel, long fromDay, long toDay, WritableByteChannel target) throws IOException {
+        int days = 0;
+        for (long day = TimeKeeper.startOfDay(fromDay); day <= toDay; day = TimeKeeper.nextDay(day)) {
+            if (transferTo(channel, day, target) > 0) {
+                days++;
+            } else if (!isClosed(day)) {
+                IRCConnector.LOGGER.info("Not exporting {} of {}, as it isn't over yet", TimeKeeper.dayName(day), channel);
+            }
+        }
+        return days;
+    }
+
+    /**
+     * seals the last few days of some channels now, and again every hour, so that days are archived soon after they
+     * close rather than when first asked for
+     */
+    public synchronized void startSealing(final Collection<String> channels, final int days) {
+        if (sealer == null) {
+            sealer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setName("DayArchiveSealer");
+                t.setDaemon(true);
+                return t;
+            });
+            sealer.scheduleWithFixedDelay(() -> sealRecent(channels, days), 0, SEAL_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stopSealing() {
+        if (sealer != null) {
+            sealer.shutdownNow();
+            sealer = null;
+        }
+    }
+
+    private void sealRecent(Collection<String> channels, int days) {
+        long day = TimeKeeper.startOfDay(System.currentTimeMillis());
+        for (int d = 0; d < days; d++) {
+            day = TimeKeeper.startOfDay(day - 1);
+            for (String channel : channels) {
+                try {
+                    seal(channel, day);
+                } catch (Exception e) {
+                    IRCConnector.LOGGER.error("Failed sealing {} of {}", TimeKeeper.dayName(day), channel, e);
+                }
+            }
+        }
+    }
+
+    private File fileOf(String channel, long dayStart) {
+        try {
+            return new File(new File(directory, URLEncoder.encode(channel, "UTF-8")), TimeKeeper.dayName(dayStart) + FILE_SUFFIX);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException("UTF-8 is always supported", uee);
+        }
+    }
+
+    /**
+     * @return the number of messages in an archive, or -1 if it isn't a version it can read
+     */
+    private static int countOf(File archive) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 8 + 4);
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (in.read(header) < 0) {
+                    return -1;
+                }
+            }
+        }
+        header.flip();
+        if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+            return -1;
+        }
+        return header.getInt(4 + 4 + 8 + 8);
+    }
+
+    private static void write(FileChannel out, String channel, long dayStart, List<Message> messages) throws IOException {
+        int blocks = (messages.size() + BLOCK_MESSAGES - 1) / BLOCK_MESSAGES;
+        List<byte[]> compressed = new ArrayList<>(blocks);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream block = new DataOutputStream(bytes);
+        for (int b = 0; b < blocks; b++) {
+            bytes.reset();
+            for (Message message : messages.subList(b * BLOCK_MESSAGES, Math.min(messages.size(), (b + 1) * BLOCK_MESSAGES))) {
+                block.writeLong(message.getTime());
+                writeString(block, message.getSender());
+                writeString(block, message.getMessage());
+            }
+            block.flush();
+            compressed.add(Snappy.compress(bytes.toByteArray()));
+        }
+
+        byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 4 + 4 + 8 + 8 + 4 + 2 + channelBytes.length + 4 + (blocks * 12);
+        long length = headerSize;
+        for (byte[] c : compressed) {
+            length += c.length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(length);
+        header.putLong(dayStart);
+        header.putInt(messages.size());
+        header.putShort((short) channelBytes.length);
+        header.put(channelBytes);
+        header.putInt(blocks);
+        long offset = headerSize;
+        for (byte[] c : compressed) {
+            header.putLong(offset);
+            header.putInt(c.length);
+            offset += c.length;
+        }
+        header.flip();
+        writeFully(out, header);
+        for (byte[] c : compressed) {
+            writeFully(out, ByteBuffer.wrap(c));
+        }
+    }
+
+    private static MessagePage readPage(ByteBuffer archive, String channel, int start, int limit) throws IOException {
+        if ((archive.getInt() != MAGIC) || (archive.getInt() != VERSION)) {
+            throw new IOException("Not a version " + VERSION + " day archive");
+        }
+        archive.getLong();
+        archive.getLong();
+        int count = archive.getInt();
+        int channelLength = archive.getShort() & 0xFFFF;
+        archive.position(archive.position() + channelLength);
+        archive.getInt();
+        int index = archive.position();
+
+        int end = (int) Math.min(count, (long) start + limit);
+        List<Message> messages = new ArrayList<>(Math.max(0, end - start));
+        for (int b = start / BLOCK_MESSAGES; (b * BLOCK_MESSAGES) < end; b++) {
+            int offset = (int) archive.getLong(index + (b * 12));
+            byte[] compressed = new byte[archive.getInt(index + (b * 12) + 8)];
+            archive.position(offset);
+            archive.get(compressed);
+
+            ByteBuffer block = ByteBuffer.wrap(Snappy.uncompress(compressed));
+            for (int ordinal = b * BLOCK_MESSAGES; block.hasRemaining() && (ordinal < end); ordinal++) {
+                long timestamp = block.getLong();
+                String sender = readString(block);
+                String message = readString(block);
+                if (ordinal >= start) {
+                    messages.add(new Message(channel, sender, timestamp, message));
+                }
+            }
+        }
+        return new MessagePage(messages, (end < count) ? String.valueOf(end) : null);
+    }
+
+    private static MappedByteBuffer map(File archive) throws IOException {
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
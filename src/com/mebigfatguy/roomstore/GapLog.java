@@ -0,0 +1,228 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * the times each channel wasn't being recorded, because its connection was down, so that history queries can say which
+ * parts of a range are missing rather than passing off an incomplete day as a quiet one.
+ * <p>
+ * Each channel's gaps are kept as a store checkpoint, a version followed by (long from, long to) pairs, oldest first,
+ * read the first time the channel is asked about and rewritten as each gap is added. Only the most recent gaps are
+ * kept, as a channel that drops often would otherwise grow its checkpoint without end.
+ * <p>
+ * So that time roomstore wasn't running at all, stopped or crashed, is a gap too, the last time each channel was known
+ * to be recorded is saved every so often as a heartbeat, a version followed by (utf channel, long time) pairs, and the
+ * heartbeats of the last run are kept from when the log is made, for the gap up to each channel's first connection.
+ */
+public class GapLog {
+
+    public static final int DEFAULT_MAX_GAPS = 500;
+    public static final String CHECKPOINT_PREFIX = "gaps.";
+    public static final String HEARTBEAT_CHECKPOINT = "recording.heartbeat";
+
+    private static final int VERSION = 1;
+
+    private final MessageStore store;
+    private final int maxGaps;
+    private final Map<String, List<long[]>> gaps = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastRun;
+    private final Map<String, Long> heartbeats;
+    private final Meter recorded = Instrumentation.REGISTRY.meter("gaps.recorded");
+
+    public GapLog(MessageStore messageStore) {
+        this(messageStore, DEFAULT_MAX_GAPS);
+    }
+
+    /**
+     * @param maxGapsPerChannel
+     *            how many of each channel's most recent gaps are kept
+     */
+    public GapLog(MessageStore messageStore, int maxGapsPerChannel) {
+        store = messageStore;
+        maxGaps = Math.max(1, maxGapsPerChannel);
+        lastRun = loadHeartbeats();
+        heartbeats = new ConcurrentHashMap<>(lastRun);
+    }
+
+    /**
+     * @return the last time a channel was known to be recorded before roomstore was last started, or 0 if it never was
+     */
+    public long getLastRecorded(String channel) {
+        Long time = lastRun.get(channel);
+        return (time == null) ? 0 : time.longValue();
+    }
+
+    /**
+     * records that some channels are being recorded at a time, saving it along with the last time the rest were
+     */
+    public synchronized void heartbeat(Collection<String> channels, long time) {
+        for (String channel : channels) {
+            heartbeats.put(channel, Long.valueOf(time));
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeInt(heartbeats.size());
+            for (Map.Entry<String, Long> heartbeat : heartbeats.entrySet()) {
+                out.writeUTF(heartbeat.getKey());
+                out.writeLong(heartbeat.getValue().longValue());
+            }
+            out.flush();
+            store.saveCheckpoint(HEARTBEAT_CHECKPOINT, bytes.toByteArray());
+        } catch (IOException | RuntimeException e) {
+            IRCConnector.LOGGER.error("Failed saving the recording heartbeat of {}", TimeKeeper.format(time), e);
+        }
+    }
+
+    /**
+     * records that a channel wasn't recorded from one time up to another, keeping it in memory even if it can't be
+     * saved, so that it is still reported until roomstore stops
+     */
+    public void addGap(String channel, long from, long to) {
+        if (from >= to) {
+            return;
+        }
+
+        List<long[]> channelGaps = gapsOf(channel);
+        byte[] state;
+        synchronized (channelGaps) {
+            channelGaps.add(new long[] { from, to });
+            if (channelGaps.size() > maxGaps) {
+                channelGaps.subList(0, channelGaps.size() - maxGaps).clear();
+            }
+            state = write(channelGaps);
+        }
+        recorded.mark();
+
+        try {
+            store.saveCheckpoint(checkpointName(channel), state);
+        } catch (RuntimeException e) {
+            IRCConnector.LOGGER.error("Failed saving the gap from {} to {} in channel {}", TimeKeeper.format(from), TimeKeeper.format(to), channel,
+                    e);
+        }
+    }
+
+    /**
+     * @return the gaps of a channel that overlap the range from one time up to, but not including, another, oldest
+     *         first, each as { from, to }
+     */
+    public List<long[]> getGaps(String channel, long from, long to) {
+        List<long[]> overlapping = new ArrayList<>();
+        List<long[]> channelGaps = gapsOf(channel);
+        synchronized (channelGaps) {
+            for (long[] gap : channelGaps) {
+                if ((gap[0] < to) && (gap[1] > from)) {
+                    overlapping.add(gap);
+                }
+            }
+        }
+        return overlapping;
+    }
+
+    private List<long[]> gapsOf(String channel) {
+        return gaps.computeIfAbsent(channel, this::load);
+    }
+
+    private List<long[]> load(String channel) {
+        List<long[]> channelGaps = new ArrayList<>();
+        try {
+            byte[] state = store.loadCheckpoint(checkpointName(channel));
+            if (state != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        channelGaps.add(new long[] { in.readLong(), in.readLong() });
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            IRCConnector.LOGGER.error("Ignoring unreadable gaps of channel {}", channel, e);
+            channelGaps.clear();
+        }
+        return channelGaps;
+    }
+
+    private Map<String, Long> loadHeartbeats() {
+        Map<String, Long> times = new HashMap<>();
+        try {
+            byte[] state = store.loadCheckpoint(HEARTBEAT_CHECKPOINT);
+            if (state != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        times.put(in.readUTF(), Long.valueOf(in.readLong()));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            IRCConnector.LOGGER.error("Ignoring unreadable recording heartbeat, the time roomstore was down won't be recorded as gaps", e);
+            times.clear();
+        }
+        return times;
+    }
+
+    private static byte[] write(List<long[]> channelGaps) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + (16 * channelGaps.size()));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeInt(channelGaps.size());
+            for (long[] gap : channelGaps) {
+                out.writeLong(gap[0]);
+                out.writeLong(gap[1]);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed writing gaps to memory", ioe);
+        }
+    }
+
+    /**
+     * @return the checkpoint a channel's gaps are kept under, encoded as channels can hold characters, such as /, that
+     *         can't be in a file name
+     */
+    private static String checkpointName(String channel) {
+        try {
+            return CHECKPOINT_PREFIX + URLEncoder.encode(channel, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException("UTF-8 is always supported", uee);
+        }
+    }
+}
@@ -19,55 +19,350 @@
 package com.mebigfatguy.roomstore;
 
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.jibble.pircbot.IrcException;
 import org.jibble.pircbot.NickAlreadyInUseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * one bot's connection to an irc server, and the channels it records there. The store, pipeline and command threads
+ * it records through are handed to it, and may be shared with other connections, so they are started and stopped by
+ * whoever owns them, such as a {@link NetworkSupervisor}.
+ * <p>
+ * A connection goes from DISCONNECTED to CONNECTING to CONNECTED. When it drops, it is RECONNECTING, with attempts
+ * scheduled by its reconnect policy, each one CONNECTING again, until one succeeds or the connection is STOPPED. Only
+ * one attempt is ever pending, however many times the drop is reported. Once back, the time it was down is recorded as
+ * a gap in each of its channels, as is the time from when its channels were last recorded before roomstore started up
+ * to its first connection, once the gap log is ready.
+ */
 public class IRCConnector {
 
+    public enum State {
+        DISCONNECTED, CONNECTING, CONNECTED, RECONNECTING, STOPPED
+    }
+
     static final Logger LOGGER = LoggerFactory.getLogger(IRCConnector.class);
-    CassandraWriter writer;
+
+    private static final int MAX_NICK_RENAMES = 5;
+    private static final int MAX_JOIN_LENGTH = 400;
+
+    volatile MessageStore writer;
+    IngestPipeline pipeline;
+    volatile TrendingTracker trendingTracker;
+    volatile DayArchive dayArchive;
+    volatile GapLog gapLog;
+    CommandExecutor commands;
     CasBot casBot;
     MessagePoster poster;
     String server;
     String[] channels;
+    String network;
+    ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private volatile State state = State.DISCONNECTED;
+    private ScheduledExecutorService reconnects;
+    private ScheduledFuture<?> pendingAttempt;
+    private int attempt;
+    private long disconnectedAt;
+    private boolean firstConnection = true;
+    private long firstConnectedAt;
 
     public IRCConnector(String nickName, String ircServer, String[] ircChannels) {
-        poster = new MessagePoster();
+        this(nickName, ircServer, ircChannels, new MessagePoster());
+    }
+
+    public IRCConnector(String nickName, String ircServer, String[] ircChannels, MessagePoster messagePoster) {
+        poster = messagePoster;
         casBot = new CasBot(this, poster, nickName);
         poster.startPosting(casBot);
         server = ircServer;
         channels = ircChannels;
     }
 
-    public void setWriter(CassandraWriter cassandraWriter) {
-        writer = cassandraWriter;
+    public void setWriter(MessageStore messageStore) {
+        writer = messageStore;
+    }
+
+    public void setIngestPipeline(IngestPipeline ingestPipeline) {
+        pipeline = ingestPipeline;
+    }
+
+    public void setTrendingTracker(TrendingTracker tracker) {
+        trendingTracker = tracker;
+    }
+
+    public void setDayArchive(DayArchive archive) {
+        dayArchive = archive;
+    }
+
+    public void setGapLog(GapLog gaps) {
+        gapLog = gaps;
+        recordRestartGap();
+    }
+
+    /**
+     * schedules reconnect attempts on threads shared with other connections, rather than ones of this connection's own
+     */
+    public synchronized void setReconnectScheduler(ScheduledExecutorService scheduler) {
+        reconnects = scheduler;
+    }
+
+    public void setCommandExecutor(CommandExecutor commandExecutor) {
+        commands = commandExecutor;
+    }
+
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        reconnectPolicy = policy;
+    }
+
+    /**
+     * stores this connection's channels as network/#channel, so that channels of the same name on different networks
+     * are kept apart; without a network they are stored as they are named
+     */
+    public void setNetwork(String networkName) {
+        network = networkName;
     }
 
+    /**
+     * @return the name an irc channel's messages are stored and looked up under
+     */
+    String storedName(String channel) {
+        return (network == null) ? channel : network + '/' + channel;
+    }
+
+    /**
+     * @return the name a configured channel, which may be given without its #, is stored and looked up under
+     */
+    String storedChannelName(String channel) {
+        return storedName(channel.startsWith("#") ? channel : '#' + channel);
+    }
+
+    /**
+     * @return a user's nick qualified by the server they are on, so that the same nick on other networks is kept apart
+     */
+    String userKey(String nick) {
+        return server + '/' + nick;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * connects and joins the channels, renaming the bot a few times if its nickname is taken, leaving it DISCONNECTED
+     * if that fails so it can be handed to {@link #reconnect()}
+     */
     public void startRecording() throws IrcException, IOException {
-        boolean started = false;
-        while (!started) {
-            try {
-                casBot.connect(server);
-                for (String channel : channels) {
-                    if (!channel.startsWith("#")) {
-                        channel = '#' + channel;
+        synchronized (this) {
+            if (state != State.DISCONNECTED) {
+                return;
+            }
+            state = State.CONNECTING;
+        }
+
+        try {
+            for (int renames = 0;; renames++) {
+                try {
+                    connect();
+                    break;
+                } catch (NickAlreadyInUseException naiue) {
+                    if (renames >= MAX_NICK_RENAMES) {
+                        throw naiue;
                     }
-                    casBot.joinChannel(channel);
-                    started = true;
+                    renameBot();
                 }
-            } catch (NickAlreadyInUseException naiue) {
-                String name = casBot.getName();
-                name += String.valueOf((int) (Math.random() * 10));
-                casBot.rename(name);
             }
+        } catch (IOException | IrcException | RuntimeException e) {
+            synchronized (this) {
+                if (state == State.CONNECTING) {
+                    state = State.DISCONNECTED;
+                }
+            }
+            throw e;
+        }
+
+        if (!connected()) {
+            synchronized (this) {
+                if (state == State.CONNECTING) {
+                    state = State.DISCONNECTED;
+                }
+            }
+            reconnect();
+        }
+    }
+
+    /**
+     * schedules reconnecting, waiting as long as the reconnect policy says before each attempt, until connected or
+     * stopped. Does nothing if already reconnecting or connecting, so a drop reported more than once is only acted on once.
+     */
+    synchronized void reconnect() {
+        if ((state == State.STOPPED) || (state == State.RECONNECTING) || (state == State.CONNECTING)) {
+            return;
+        }
+
+        if (state == State.CONNECTED) {
+            disconnectedAt = System.currentTimeMillis();
+            LOGGER.warn("Disconnected from {}, reconnecting", server);
         }
+        state = State.RECONNECTING;
+        attempt = 0;
+        schedule(reconnectPolicy.getDelay(attempt));
     }
-    
+
     public void stopRecording() {
-        poster.stopPosting();
+        synchronized (this) {
+            state = State.STOPPED;
+            if (pendingAttempt != null) {
+                pendingAttempt.cancel(true);
+            }
+        }
         casBot.disconnect();
+        poster.stopPosting();
+    }
+
+    private void schedule(long delay) {
+        if (reconnects == null) {
+            reconnects = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setName("Reconnect-" + server);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        pendingAttempt = reconnects.schedule(this::attemptReconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attemptReconnect() {
+        synchronized (this) {
+            if (state != State.RECONNECTING) {
+                return;
+            }
+            state = State.CONNECTING;
+        }
+
+        try {
+            connect();
+            if (connected()) {
+                return;
+            }
+        } catch (NickAlreadyInUseException naiue) {
+            renameBot();
+            LOGGER.info("Nickname taken on {}, retrying as {}", server, casBot.getName());
+        } catch (IOException | IrcException | RuntimeException e) {
+            LOGGER.warn("Failed reconnecting to {}", server, e);
+        }
+
+        synchronized (this) {
+            if (state == State.CONNECTING) {
+                state = State.RECONNECTING;
+                long delay = reconnectPolicy.getDelay(++attempt);
+                LOGGER.info("Retrying {} in {}ms", server, Long.valueOf(delay));
+                schedule(delay);
+            }
+        }
+    }
+
+    /**
+     * moves a connection that has just been made to CONNECTED, recording how long it was down in each channel
+     *
+     * @return false if it was stopped, when it is disconnected again, or dropped again, while connecting
+     */
+    private boolean connected() {
+        long from;
+        synchronized (this) {
+            if ((state != State.CONNECTING) || !casBot.isConnected()) {
+                if (state == State.STOPPED) {
+                    casBot.disconnect();
+                }
+                return false;
+            }
+            state = State.CONNECTED;
+            from = disconnectedAt;
+            disconnectedAt = 0;
+            attempt = 0;
+            if (firstConnection) {
+                firstConnection = false;
+                firstConnectedAt = System.currentTimeMillis();
+            }
+        }
+        recordRestartGap();
+
+        if (from > 0) {
+            long to = System.currentTimeMillis();
+            LOGGER.info("Reconnected to {} after {}ms", server, Long.valueOf(to - from));
+            GapLog gaps = gapLog;
+            if (gaps == null) {
+                LOGGER.warn("Not recording the gap from {} to {} on {}, as the store isn't ready", TimeKeeper.format(from), TimeKeeper.format(to),
+                        server);
+            } else {
+                for (String channel : channels) {
+                    gaps.addGap(storedChannelName(channel), from, to);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * records the time from when each channel was last recorded, before roomstore was started, to the first connection
+     * since, once both are known
+     */
+    private void recordRestartGap() {
+        GapLog gaps;
+        long to;
+        synchronized (this) {
+            gaps = gapLog;
+            to = firstConnectedAt;
+            if ((gaps == null) || (to == 0)) {
+                return;
+            }
+            firstConnectedAt = 0;
+        }
+
+        for (String channel : channels) {
+            String storedChannel = storedChannelName(channel);
+            long from = gaps.getLastRecorded(storedChannel);
+            if ((from > 0) && (from < to)) {
+                LOGGER.info("Recording the gap in {} from {}, when it was last recorded, to {}", storedChannel, TimeKeeper.format(from),
+                        TimeKeeper.format(to));
+                gaps.addGap(storedChannel, from, to);
+            }
+        }
+    }
+
+    private void connect() throws IrcException, IOException {
+        casBot.connect(server);
+        joinChannels();
+    }
+
+    /**
+     * joins the channels with as few JOIN lines as hold them all, rather than one each, so that after a reconnect every
+     * channel is back within a round trip, without spending the server's flood allowance on joins
+     */
+    private void joinChannels() {
+        StringBuilder join = new StringBuilder(MAX_JOIN_LENGTH);
+        for (String channel : channels) {
+            if (!channel.startsWith("#")) {
+                channel = '#' + channel;
+            }
+            if ((join.length() > 0) && ((join.length() + 1 + channel.length()) > MAX_JOIN_LENGTH)) {
+                casBot.sendRawLine(join.toString());
+                join.setLength(0);
+            }
+            join.append((join.length() == 0) ? "JOIN " : ",").append(channel);
+        }
+        if (join.length() > 0) {
+            casBot.sendRawLine(join.toString());
+        }
+    }
+
+    private void renameBot() {
+        String name = casBot.getName();
+        name += String.valueOf((int) (Math.random() * 10));
+        casBot.rename(name);
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+public class IngestEntry {
+
+    private final String channel;
+    private final String sender;
+    private final String message;
+    private final long timestamp;
+    private final long createdNanos = System.nanoTime();
+
+    public IngestEntry(String entryChannel, String entrySender, String entryMessage, long entryTimestamp) {
+        channel = entryChannel;
+        sender = entrySender;
+        message = entryMessage;
+        timestamp = entryTimestamp;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the System.nanoTime this entry was made at, which for the ingest pipeline is when it was queued, or read
+     *         back from the spool to be queued, however old the message is
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestEntry[" + channel + ", " + sender + ", " + timestamp + ", " + message + "]";
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * decouples the irc event thread from cassandra. Messages are put on a bounded queue, and a set of worker threads
+ * drain that queue in chunks, writing each chunk as per partition unlogged batches with executeAsync. The number of
+ * statements in flight is bounded, so a slow cluster backs up into the queue, where the overflow policy decides what
+ * happens, rather than into the caller.
+ * <p>
+ * With a write ahead spool, every message is appended to the spool first, and a replayer thread feeds the queue from
+ * it, so the queue only ever holds what the workers can take. Spooled messages that fail to write are retried, with
+ * backoff, until cassandra takes them, and the spool is checkpointed up to the oldest message not yet written, so a
+ * restart picks up where it left off. Writes are therefore at least once; a retried chunk may count its words twice.
+ * <p>
+ * With a load shedder, the time messages wait for a worker since they were queued and the time chunks take to write
+ * are measured, and while ingest is overloaded, chunks are written without their words, which the workers index once
+ * the queue is empty and the load has dropped, so that storing messages keeps up with a flood. Spooled messages whose
+ * words are deferred hold the spool checkpoint until they are indexed, so a restart indexes them from the spool, and
+ * without a spool, the workers index them before stopping.
+ */
+public class IngestPipeline {
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    public static final long DEFAULT_BLOCK_MILLIS = 50;
+
+    private static final int MAX_BATCH_ENTRIES = 64;
+    private static final long POLL_MILLIS = 100;
+    private static final long SHUTDOWN_MILLIS = 30000;
+    private static final long CHECKPOINT_MILLIS = 1000;
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 30000;
+
+    private volatile IngestSink sink;
+    private final BlockingQueue<IngestEntry> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] workers;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> outstanding = new ConcurrentSkipListSet<>();
+    private final Queue<List<IngestEntry>> retries = new ConcurrentLinkedQueue<>();
+    private final Timer chunkTimer = Instrumentation.REGISTRY.timer("ingest.chunk");
+    private long blockMillis = DEFAULT_BLOCK_MILLIS;
+    private WriteAheadSpool spool;
+    private LoadShedder shedder;
+    private volatile Thread replayer;
+    private volatile long retryMillis = MIN_RETRY_MILLIS;
+    private volatile long retryAt;
+    private volatile boolean stopping;
+
+    public IngestPipeline(IngestSink ingestSink, int queueSize, int numWorkers, OverflowPolicy policy) {
+        sink = ingestSink;
+        queue = new ArrayBlockingQueue<>(queueSize);
+        overflowPolicy = policy;
+        workers = new Thread[Math.max(1, numWorkers)];
+        maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * sets where messages are written, for a pipeline made before its store was opened, to which messages can be
+     * submitted in the meantime, waiting in the queue or spool until it is started
+     */
+    public void setSink(IngestSink ingestSink) {
+        sink = ingestSink;
+    }
+
+    public void setBlockMillis(long millis) {
+        blockMillis = millis;
+    }
+
+    public void setSpool(WriteAheadSpool writeAheadSpool) {
+        spool = writeAheadSpool;
+    }
+
+    public void setLoadShedder(LoadShedder loadShedder) {
+        shedder = loadShedder;
+    }
+
+    public void startIngesting() {
+        if (sink == null) {
+            throw new IllegalStateException("No sink to ingest into");
+        }
+        stopping = false;
+        Instrumentation.gauge("ingest.queueDepth", () -> Integer.valueOf(queue.size()));
+        Instrumentation.gauge("ingest.outstanding", () -> Integer.valueOf(outstanding.size()));
+        Instrumentation.gauge("ingest.submitted", () -> Long.valueOf(submitted.get()));
+        Instrumentation.gauge("ingest.spooled", () -> Long.valueOf(spooled.get()));
+        Instrumentation.gauge("ingest.dropped", () -> Long.valueOf(dropped.get()));
+        Instrumentation.gauge("ingest.retried", () -> Long.valueOf(retried.get()));
+        Instrumentation.gauge("ingest.failed", () -> Long.valueOf(failed.get()));
+        if (shedder != null) {
+            Instrumentation.gauge("ingest.shed.overloaded", () -> Integer.valueOf(shedder.isOverloaded() ? 1 : 0));
+            Instrumentation.gauge("ingest.shed.deferred", () -> Integer.valueOf(shedder.getDeferredCount()));
+            Instrumentation.gauge("ingest.shed.deduped", () -> Long.valueOf(shedder.getDedupedCount()));
+            Instrumentation.gauge("ingest.shed.backfilled", () -> Long.valueOf(shedder.getBackfilledCount()));
+            Instrumentation.gauge("ingest.shed.overflowed", () -> Long.valueOf(shedder.getOverflowedCount()));
+        }
+        if ((spool != null) && (replayer == null)) {
+            replayer = new Thread(new Replayer());
+            replayer.setName("IngestReplayer");
+            replayer.start();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] == null) {
+                workers[i] = new Thread(new Worker());
+                workers[i].setName("IngestWorker-" + i);
+                workers[i].start();
+            }
+        }
+    }
+
+    /**
+     * queues a message for writing, never waiting on cassandra. With a spool the message is appended to it, otherwise,
+     * or if the spool can't be written, it is put on the queue, and if the queue is full, the overflow policy is applied.
+     *
+     * @return whether the message was accepted, either spooled or queued
+     */
+    public boolean submit(String channel, String sender, String message) {
+        IngestEntry entry = new IngestEntry(channel, sender, message, System.currentTimeMillis());
+        submitted.incrementAndGet();
+
+        if (spool != null) {
+            try {
+                spool.append(entry);
+                spooled.incrementAndGet();
+                LockSupport.unpark(replayer);
+                return true;
+            } catch (IOException ioe) {
+                IRCConnector.LOGGER.error("Failed spooling message on channel {} for user {}", channel, sender, ioe);
+            }
+        }
+
+        if (queue.offer(entry)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    if (queue.offer(entry, blockMillis, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            break;
+
+            case DROP_OLDEST:
+                // spooled entries are never evicted, as they are already on disk and hold the spool checkpoint until written
+                for (;;) {
+                    if (queue.offer(entry)) {
+                        return true;
+                    }
+                    IngestEntry oldest = oldestUnspooled();
+                    if (oldest == null) {
+                        break;
+                    }
+                    if (queue.remove(oldest)) {
+                        dropped.incrementAndGet();
+                    }
+                }
+            break;
+
+            case DROP_NEWEST:
+            default:
+            break;
+        }
+
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the oldest queued entry that wasn't read from the spool, or null if there is none
+     */
+    private IngestEntry oldestUnspooled() {
+        for (IngestEntry queued : queue) {
+            if (!(queued instanceof SpooledEntry)) {
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * stops accepting work, lets the workers drain what is queued, and waits for outstanding writes to finish. Spooled
+     * messages that weren't written are left in the spool for the next start.
+     */
+    public void stopIngesting() {
+        stopping = true;
+        if (replayer != null) {
+            LockSupport.unpark(replayer);
+            try {
+                replayer.join(SHUTDOWN_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                replayer = null;
+            }
+        }
+
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null) {
+                try {
+                    workers[i].join(SHUTDOWN_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    workers[i] = null;
+                }
+            }
+        }
+
+        try {
+            if (inFlight.tryAcquire(maxInFlight, SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS)) {
+                inFlight.release(maxInFlight);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if ((shedder != null) && (shedder.getDeferredCount() > 0)) {
+            if (spool != null) {
+                IRCConnector.LOGGER.info("Stopped with {} messages stored but not yet indexed, which are indexed from the spool on the next start",
+                        Integer.valueOf(shedder.getDeferredCount()));
+            } else {
+                IRCConnector.LOGGER.warn("Stopped with {} messages stored but not yet indexed", Integer.valueOf(shedder.getDeferredCount()));
+            }
+        }
+
+        if (spool != null) {
+            try {
+                checkpoint();
+                spool.close();
+            } catch (IOException ioe) {
+                IRCConnector.LOGGER.error("Failed checkpointing spool", ioe);
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSpooledCount() {
+        return spooled.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    /**
+     * the number of spooled messages read but not yet written
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * saves the spool position before the oldest spooled message not yet written, or everything read if there is none.
+     * Only called from the replayer, or once it has stopped, so nothing is read between the two lookups.
+     */
+    private void checkpoint() throws IOException {
+        Long oldest = outstanding.isEmpty() ? null : outstanding.first();
+        spool.checkpoint((oldest != null) ? oldest.longValue() : spool.getReadPosition());
+    }
+
+    private void write(List<IngestEntry> entries) throws InterruptedException {
+        List<IngestEntry> deferring = (shedder == null) ? null : shedder.admit(entries);
+        List<IngestSink.Write> writes = (deferring == null) ? sink.buildWrites(entries) : sink.buildRawWrites(entries);
+        submit(writes, new Chunk(new ArrayList<>(entries), writes.size() + 1, false, deferring));
+    }
+
+    /**
+     * writes the words of messages whose indexing was deferred
+     */
+    private void backfill(List<IngestEntry> entries) throws InterruptedException {
+        List<IngestSink.Write> writes = sink.buildIndexWrites(entries);
+        submit(writes, new Chunk(new ArrayList<>(entries), writes.size() + 1, true, null));
+    }
+
+    /**
+     * whether a worker with nothing queued should index deferred messages: once the load has dropped, or when stopping
+     * without a spool, which is the last chance to
+     */
+    private boolean canBackfill() {
+        return (shedder != null) && (stopping ? (spool == null) : !shedder.isOverloaded());
+    }
+
+    /**
+     * lets the spool be checkpointed past a spooled message
+     */
+    private void release(IngestEntry entry) {
+        if (entry instanceof SpooledEntry) {
+            outstanding.remove(Long.valueOf(((SpooledEntry) entry).getPosition()));
+        }
+    }
+
+    private void submit(List<IngestSink.Write> writes, Chunk chunk) throws InterruptedException {
+        // the chunk's extra completion is held until every write is submitted, so it can't finish early, or never
+        for (IngestSink.Write write : writes) {
+            inFlight.acquire();
+            ListenableFuture<?> future;
+            try {
+                future = write.execute();
+            } catch (RuntimeException e) {
+                inFlight.release();
+                IRCConnector.LOGGER.error("Failed submitting ingest statement", e);
+                chunk.completed(false);
+                continue;
+            }
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    inFlight.release();
+                    chunk.completed(true);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    inFlight.release();
+                    IRCConnector.LOGGER.error("Failed writing ingest statement", t);
+                    chunk.completed(false);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        chunk.completed(true);
+    }
+
+    /**
+     * the entries a set of writes were built from, so they can be retried, or released from the spool, once every write
+     * has finished. The entries whose words weren't written are deferred once the chunk is stored, and stay in the spool
+     * until a backfill indexes them. A failed backfill is deferred again rather than retried, as the messages themselves
+     * are stored.
+     */
+    private class Chunk {
+
+        private final List<IngestEntry> entries;
+        private final AtomicInteger remaining;
+        private final boolean backfill;
+        private final List<IngestEntry> deferring;
+        private final Timer.Context timing = chunkTimer.time();
+        private volatile boolean succeeded = true;
+
+        Chunk(List<IngestEntry> chunkEntries, int numWrites, boolean indexOnly, List<IngestEntry> toDefer) {
+            entries = chunkEntries;
+            remaining = new AtomicInteger(numWrites);
+            backfill = indexOnly;
+            deferring = toDefer;
+        }
+
+        void completed(boolean success) {
+            if (!success) {
+                succeeded = false;
+            }
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+            long latency = timing.stop();
+            if ((shedder != null) && succeeded) {
+                shedder.recordLatency(latency);
+            }
+            if (backfill) {
+                if (succeeded) {
+                    for (IngestEntry entry : entries) {
+                        release(entry);
+                    }
+                } else if (!stopping) {
+                    for (IngestEntry entry : entries) {
+                        shedder.defer(entry);
+                    }
+                } else {
+                    // spooled ones are still held in the spool, to be indexed after a restart
+                    failed.addAndGet(entries.size());
+                }
+                return;
+            }
+
+            // a chunk can mix spooled entries with ones queued directly because the spool couldn't be written
+            List<IngestEntry> spooledEntries = new ArrayList<>(entries.size());
+            for (IngestEntry entry : entries) {
+                if (entry instanceof SpooledEntry) {
+                    spooledEntries.add(entry);
+                }
+            }
+            if (succeeded) {
+                Set<IngestEntry> held = Collections.emptySet();
+                if (deferring != null) {
+                    held = new HashSet<>(deferring);
+                    for (IngestEntry entry : deferring) {
+                        shedder.defer(entry);
+                    }
+                }
+                if (!spooledEntries.isEmpty()) {
+                    for (IngestEntry entry : spooledEntries) {
+                        if (!held.contains(entry)) {
+                            release(entry);
+                        }
+                    }
+                    retryMillis = MIN_RETRY_MILLIS;
+                }
+            } else if (!spooledEntries.isEmpty() && !stopping) {
+                retried.addAndGet(spooledEntries.size());
+                failed.addAndGet(entries.size() - spooledEntries.size());
+                retries.add(spooledEntries);
+                retryAt = System.currentTimeMillis() + retryMillis;
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            } else {
+                failed.addAndGet(entries.size());
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            List<IngestEntry> entries = new ArrayList<>(MAX_BATCH_ENTRIES);
+            try {
+                while (!stopping || (retries.isEmpty() && (!queue.isEmpty() || (canBackfill() && (shedder.getDeferredCount() > 0))))) {
+                    try {
+                        if (!retries.isEmpty()) {
+                            // while cassandra is failing, only retry, leaving new messages in the spool
+                            long wait = retryAt - System.currentTimeMillis();
+                            if (wait > 0) {
+                                Thread.sleep(Math.min(wait, POLL_MILLIS));
+                                continue;
+                            }
+                            List<IngestEntry> retry = retries.poll();
+                            if (retry != null) {
+                                entries.addAll(retry);
+                            }
+                        } else if (queue.isEmpty() && canBackfill() && (shedder.takeDeferred(entries, MAX_BATCH_ENTRIES) > 0)) {
+                            backfill(entries);
+                            continue;
+                        } else {
+                            IngestEntry entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                            if (entry != null) {
+                                if (shedder != null) {
+                                    shedder.recordLag(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.getCreatedNanos()));
+                                }
+                                entries.add(entry);
+                                queue.drainTo(entries, MAX_BATCH_ENTRIES - 1);
+                            } else if (shedder != null) {
+                                shedder.recordIdle();
+                            }
+                        }
+
+                        if (!entries.isEmpty()) {
+                            write(entries);
+                        }
+                    } catch (RuntimeException e) {
+                        failed.addAndGet(entries.size());
+                        IRCConnector.LOGGER.error("Failed ingesting {} messages", entries.size(), e);
+                    } finally {
+                        entries.clear();
+                    }
+                }
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    /**
+     * feeds the queue from the spool, as fast as the workers take it, and checkpoints the spool as writes complete
+     */
+    private class Replayer implements Runnable {
+
+        @Override
+        public void run() {
+            List<SpooledEntry> entries = new ArrayList<>(MAX_BATCH_ENTRIES);
+            long lastCheckpoint = System.currentTimeMillis();
+            try {
+                while (!stopping) {
+                    try {
+                        if (entries.isEmpty()) {
+                            try {
+                                spool.read(entries, MAX_BATCH_ENTRIES);
+                            } finally {
+                                // what was read before a failure is past the read position, so must hold the checkpoint too
+                                for (SpooledEntry entry : entries) {
+                                    outstanding.add(Long.valueOf(entry.getPosition()));
+                                }
+                            }
+                        }
+
+                        if (entries.isEmpty()) {
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS));
+                        } else {
+                            while (!entries.isEmpty() && queue.offer(entries.get(0), POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                                entries.remove(0);
+                            }
+                        }
+
+                        long now = System.currentTimeMillis();
+                        if ((now - lastCheckpoint) >= CHECKPOINT_MILLIS) {
+                            checkpoint();
+                            lastCheckpoint = now;
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        IRCConnector.LOGGER.error("Failed replaying spool", e);
+                        Thread.sleep(MAX_RETRY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * where the ingest pipeline sends messages. The message stores are the real ones, but keeping the pipeline to this lets
+ * it be driven against an in memory stand in when measuring it.
+ */
+public interface IngestSink {
+
+    /**
+     * turns a chunk of messages into independent writes, which the pipeline issues as it has room for them
+     */
+    List<Write> buildWrites(List<IngestEntry> entries);
+
+    /**
+     * turns a chunk of messages into writes of only what they can't be read back without, leaving their words to be
+     * indexed later, or not at all, for when ingest is overloaded
+     */
+    List<Write> buildRawWrites(List<IngestEntry> entries);
+
+    /**
+     * turns a chunk of messages already written by buildRawWrites into writes of their words
+     */
+    List<Write> buildIndexWrites(List<IngestEntry> entries);
+
+    /**
+     * one asynchronous write, typically a single partition batch
+     */
+    interface Write {
+        ListenableFuture<?> execute();
+    }
+}
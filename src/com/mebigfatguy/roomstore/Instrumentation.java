@@ -0,0 +1,114 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Slf4jReporter;
+
+/**
+ * the registry that ingest, queries, posting and commands record their metrics in, and the reporters that publish it:
+ * always over jmx, and periodically to a csv directory or the log
+ */
+public final class Instrumentation {
+
+    public static final long DEFAULT_REPORT_SECONDS = 60;
+
+    static final MetricRegistry REGISTRY = new MetricRegistry();
+
+    private static JmxReporter jmxReporter;
+    private static ScheduledReporter scheduledReporter;
+
+    private Instrumentation() {
+    }
+
+    /**
+     * starts publishing metrics
+     *
+     * @param csvDirectory
+     *            where to write a csv file per metric, or null to write them to the log
+     * @param periodSeconds
+     *            how often to write them, or 0 to only publish over jmx
+     */
+    public static synchronized void startReporting(File csvDirectory, long periodSeconds) {
+        if (jmxReporter == null) {
+            jmxReporter = JmxReporter.forRegistry(REGISTRY).inDomain("roomstore").build();
+            jmxReporter.start();
+        }
+
+        if ((scheduledReporter == null) && (periodSeconds > 0)) {
+            if (csvDirectory != null) {
+                csvDirectory.mkdirs();
+                scheduledReporter = CsvReporter.forRegistry(REGISTRY).formatFor(Locale.US).convertRatesTo(TimeUnit.SECONDS)
+                        .convertDurationsTo(TimeUnit.MILLISECONDS).build(csvDirectory);
+            } else {
+                scheduledReporter = Slf4jReporter.forRegistry(REGISTRY).outputTo(LoggerFactory.getLogger("com.mebigfatguy.roomstore.metrics"))
+                        .convertRatesTo(TimeUnit.SECONDS).convertDurationsTo(TimeUnit.MILLISECONDS).build();
+            }
+            scheduledReporter.start(periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public static synchronized void stopReporting() {
+        if (scheduledReporter != null) {
+            scheduledReporter.report();
+            scheduledReporter.stop();
+            scheduledReporter = null;
+        }
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+            jmxReporter = null;
+        }
+    }
+
+    /**
+     * registers a gauge, replacing any registered earlier under the same name, such as by a component that was
+     * restarted
+     */
+    static void gauge(String name, Gauge<?> gauge) {
+        REGISTRY.remove(name);
+        REGISTRY.register(name, gauge);
+    }
+
+    /**
+     * counts a stored message, and the words indexed from it, against its channel
+     */
+    static void recordIngest(String channel, long words) {
+        REGISTRY.meter(MetricRegistry.name("ingest", channel, "messages")).mark();
+        recordIndexed(channel, words);
+    }
+
+    /**
+     * counts the words indexed from a message stored earlier against its channel
+     */
+    static void recordIndexed(String channel, long words) {
+        if (words > 0) {
+            REGISTRY.meter(MetricRegistry.name("ingest", channel, "words")).mark(words);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * a bounded, write through cache of the last thing each user said in each channel, filled as messages are ingested,
+ * so that ~ seen for anyone who has spoken recently is answered without going to cassandra. Its hits, misses and size
+ * are published as the seen.hits, seen.misses and seen.size gauges.
+ */
+public class LastSeenCache {
+
+    public static final int DEFAULT_SIZE = 10000;
+    public static final long DEFAULT_TTL_MINUTES = 24 * 60;
+
+    private final Cache<String, IngestEntry> cache;
+
+    public LastSeenCache(int maxSize, long ttlMinutes) {
+        cache = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlMinutes, TimeUnit.MINUTES).recordStats().build();
+        Instrumentation.gauge("seen.hits", () -> Long.valueOf(getHitCount()));
+        Instrumentation.gauge("seen.misses", () -> Long.valueOf(getMissCount()));
+        Instrumentation.gauge("seen.size", () -> Long.valueOf(getSize()));
+    }
+
+    /**
+     * records a message as the sender's last, unless a newer one is already cached, as replayed messages can arrive out
+     * of order
+     */
+    public void update(IngestEntry entry) {
+        ConcurrentMap<String, IngestEntry> map = cache.asMap();
+        String key = key(entry.getChannel(), entry.getSender());
+        IngestEntry current = map.putIfAbsent(key, entry);
+        while ((current != null) && (current.getTimestamp() < entry.getTimestamp())) {
+            if (map.replace(key, current, entry)) {
+                return;
+            }
+            current = map.putIfAbsent(key, entry);
+        }
+    }
+
+    public void update(Message message) {
+        update(new IngestEntry(message.getChannel(), message.getSender(), message.getMessage(), message.getTime()));
+    }
+
+    public Message get(String channel, String sender) {
+        IngestEntry entry = cache.getIfPresent(key(channel, sender));
+        if (entry == null) {
+            return null;
+        }
+
+        return new Message(channel, sender, entry.getTimestamp(), entry.getMessage());
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    private static String key(String channel, String sender) {
+        return channel + '\u0000' + sender;
+    }
+}
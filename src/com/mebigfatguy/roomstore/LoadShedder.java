@@ -0,0 +1,242 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * decides how much of what arrives ingest can afford to index. It keeps moving averages of how long messages wait
+ * before a worker takes them and of how long chunks take to write, and once either goes over its limit, ingest is
+ * overloaded until both are back under half of it.
+ * <p>
+ * While overloaded every message is still stored, but lines that repeat one of the last few of the same channel, as
+ * floods and netsplit quit storms do, aren't indexed at all, and the rest have their indexing deferred, to be written
+ * by the workers once the load has dropped and the queue is empty. Lines are only hashed to look for repeats while
+ * overloaded, with the windows starting out empty each time. Deferred messages are held in memory, up to a limit, past
+ * which chunks are indexed as they are written again, so that none are left unindexed; the pipeline keeps the spool
+ * checkpoint behind deferred messages, so those are indexed after a restart too.
+ */
+public class LoadShedder {
+
+    public static final long DEFAULT_MAX_LAG_MILLIS = 2000;
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 500;
+    public static final int DEFAULT_DEDUPE_WINDOW = 64;
+    public static final int DEFAULT_MAX_DEFERRED = 100000;
+
+    private static final double SMOOTHING = 0.2;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final long maxLagMillis;
+    private final long maxLatencyMillis;
+    private final int dedupeWindow;
+    private final int maxDeferred;
+    private final ConcurrentMap<String, DedupeWindow> windows = new ConcurrentHashMap<>();
+    private final Queue<IngestEntry> deferred = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger deferredCount = new AtomicInteger();
+    private final AtomicLong deduped = new AtomicLong();
+    private final AtomicLong backfilled = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private double lagMillis;
+    private double latencyMillis;
+    private volatile boolean overloaded;
+
+    public LoadShedder() {
+        this(DEFAULT_MAX_LAG_MILLIS, DEFAULT_MAX_LATENCY_MILLIS, DEFAULT_DEDUPE_WINDOW, DEFAULT_MAX_DEFERRED);
+    }
+
+    /**
+     * @param maxLag
+     *            the milliseconds messages may wait, on average, before ingest is overloaded
+     * @param maxLatency
+     *            the milliseconds chunks may take to write, on average, before ingest is overloaded
+     * @param window
+     *            the number of recent lines per channel that repeats are looked for in
+     * @param deferredLimit
+     *            the number of messages whose indexing can be deferred at once, past which it isn't
+     */
+    public LoadShedder(long maxLag, long maxLatency, int window, int deferredLimit) {
+        maxLagMillis = maxLag;
+        maxLatencyMillis = maxLatency;
+        dedupeWindow = Math.max(1, window);
+        maxDeferred = deferredLimit;
+    }
+
+    /**
+     * records how long a message waited before a worker took it
+     */
+    public synchronized void recordLag(long millis) {
+        lagMillis += SMOOTHING * (millis - lagMillis);
+        update();
+    }
+
+    /**
+     * records how long a chunk took to write
+     */
+    public synchronized void recordLatency(long nanos) {
+        latencyMillis += SMOOTHING * ((nanos / (double) TimeUnit.MILLISECONDS.toNanos(1)) - latencyMillis);
+        update();
+    }
+
+    /**
+     * records that a worker found nothing waiting, which lets both averages fall, as nothing is being written either
+     */
+    public synchronized void recordIdle() {
+        lagMillis -= SMOOTHING * lagMillis;
+        latencyMillis -= SMOOTHING * latencyMillis;
+        update();
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * decides whether a chunk's words are indexed along with it. While overloaded, and unless too many messages already
+     * are deferred, each message is remembered in its channel's window, and all but the repeats are to be deferred, which
+     * the caller does with defer once the chunk is stored.
+     *
+     * @return the messages whose indexing is to be deferred, or null if the chunk's words should be indexed now
+     */
+    public List<IngestEntry> admit(List<IngestEntry> entries) {
+        if (!overloaded) {
+            return null;
+        }
+        if (deferredCount.get() >= maxDeferred) {
+            overflowed.addAndGet(entries.size());
+            return null;
+        }
+
+        List<IngestEntry> deferring = new ArrayList<>(entries.size());
+        for (IngestEntry entry : entries) {
+            DedupeWindow window = windows.computeIfAbsent(entry.getChannel(), c -> new DedupeWindow(dedupeWindow));
+            if (window.add(HASH.hashString(entry.getMessage(), StandardCharsets.UTF_8).asLong())) {
+                deduped.incrementAndGet();
+            } else {
+                deferring.add(entry);
+            }
+        }
+        return deferring;
+    }
+
+    /**
+     * leaves a stored message's words to be indexed later
+     */
+    public void defer(IngestEntry entry) {
+        deferredCount.incrementAndGet();
+        deferred.add(entry);
+    }
+
+    /**
+     * takes up to max messages whose indexing was deferred
+     *
+     * @return the number taken
+     */
+    public int takeDeferred(List<IngestEntry> entries, int max) {
+        int taken = 0;
+        IngestEntry entry;
+        while ((taken < max) && ((entry = deferred.poll()) != null)) {
+            deferredCount.decrementAndGet();
+            entries.add(entry);
+            taken++;
+        }
+        backfilled.addAndGet(taken);
+        return taken;
+    }
+
+    /**
+     * the number of messages waiting to be indexed
+     */
+    public int getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    /**
+     * the number of messages left unindexed as repeats
+     */
+    public long getDedupedCount() {
+        return deduped.get();
+    }
+
+    /**
+     * the number of deferred messages that have since been taken to be indexed
+     */
+    public long getBackfilledCount() {
+        return backfilled.get();
+    }
+
+    /**
+     * the number of messages indexed as they were written while overloaded, as too many were already deferred
+     */
+    public long getOverflowedCount() {
+        return overflowed.get();
+    }
+
+    private void update() {
+        if (!overloaded && ((lagMillis > maxLagMillis) || (latencyMillis > maxLatencyMillis))) {
+            windows.clear();
+            overloaded = true;
+            IRCConnector.LOGGER.warn("Ingest is overloaded, messages wait {} ms and take {} ms to write, deferring word indexing", Long.valueOf((long) lagMillis),
+                    Long.valueOf((long) latencyMillis));
+        } else if (overloaded && (lagMillis < (maxLagMillis / 2.0)) && (latencyMillis < (maxLatencyMillis / 2.0))) {
+            overloaded = false;
+            IRCConnector.LOGGER.info("Ingest has recovered, indexing the words of {} deferred messages", Integer.valueOf(deferredCount.get()));
+        }
+    }
+
+    /**
+     * the hashes of the last few lines said in a channel
+     */
+    private static class DedupeWindow {
+
+        private final long[] hashes;
+        private int next;
+        private int size;
+
+        DedupeWindow(int capacity) {
+            hashes = new long[capacity];
+        }
+
+        /**
+         * @return whether the hash was already in the window
+         */
+        synchronized boolean add(long hash) {
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash) {
+                    return true;
+                }
+            }
+            hashes[next] = hash;
+            next = (next + 1) % hashes.length;
+            size = Math.max(size, next == 0 ? hashes.length : next);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,729 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * keeps messages in files on this machine, for small installs and for testing, with no cluster to run.
+ * <p>
+ * Messages are appended to a log of records
+ *
+ * <pre>
+ * int length, int crc32, long timestamp, utf channel, utf sender, utf message
+ * </pre>
+ *
+ * in the same layout as the write ahead spool, and indexed in memory: the messages of each (channel, day), of each
+ * (channel, word) and of each (channel, user), as compressed posting lists of (timestamp, log offset) in time order, so
+ * that imported history reads back among the messages around it rather than after them, and each user's last message
+ * per channel. Paging tokens are the timestamp and offset of the last message returned.
+ * <p>
+ * The indexes are saved when the store is closed, as the posting lists' encoded blocks, along with how much of the log
+ * they cover and a signature of the tokenizer that built them, the whole followed by a crc32. On start they are loaded,
+ * if they are intact and built by a tokenizer indexing the same words, and only the log after them is scanned;
+ * otherwise the whole log is. Either scan cuts off a record torn by a crash. Message text is read back with positional
+ * reads, which the page cache keeps cheap, and the log is forced to disk about once a second.
+ */
+public class LocalStore implements MessageStore {
+
+    public static final String LOG_FILE = "messages.log";
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    public static final String INDEX_FILE = "messages.index";
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = HEADER_SIZE + 8 + 3 * (2 + 0xFFFF);
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long FORCE_MILLIS = 1000;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final FileChannel log;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_RECORD_SIZE));
+    private final CRC32 crc = new CRC32();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, PostingList> days = new HashMap<>();
+    private final Map<String, PostingList> topics = new HashMap<>();
+    private final Map<String, PostingList> users = new HashMap<>();
+    private final Map<String, long[]> lastSeen = new HashMap<>();
+    private final Timer appendTimer = Instrumentation.REGISTRY.timer("local.append");
+    private MessageTokenizer tokenizer;
+    private volatile TrendingTracker trendingTracker;
+    private long logSize;
+    private long lastForce = System.currentTimeMillis();
+
+    public LocalStore(File directory) throws IOException {
+        this(directory, new MessageTokenizer());
+    }
+
+    public LocalStore(File storeDirectory, MessageTokenizer messageTokenizer) throws IOException {
+        directory = storeDirectory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create store directory " + directory);
+        }
+        tokenizer = messageTokenizer;
+        log = FileChannel.open(new File(directory, LOG_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long indexed = readIndexes();
+        if (indexed < 0) {
+            rebuildIndexes();
+        } else {
+            scanLog(indexed);
+        }
+    }
+
+    /**
+     * sets how messages are split into indexed words, reindexing the whole log, so it is cheaper to pass the tokenizer
+     * to the constructor
+     */
+    @Override
+    public void setTokenizer(MessageTokenizer messageTokenizer) {
+        lock.writeLock().lock();
+        try {
+            tokenizer = messageTokenizer;
+            rebuildIndexes();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed reindexing " + LOG_FILE, ioe);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * only messages appended from now on are counted, reindexing the log on start doesn't count it again
+     */
+    @Override
+    public void setTrendingTracker(TrendingTracker tracker) {
+        trendingTracker = tracker;
+    }
+
+    /**
+     * writes the state to a temporary file and moves it over the last checkpoint, so a crash leaves one or the other
+     */
+    @Override
+    public void saveCheckpoint(String name, byte[] state) {
+        Path checkpoint = new File(directory, name + CHECKPOINT_SUFFIX).toPath();
+        Path temp = new File(directory, name + CHECKPOINT_SUFFIX + ".tmp").toPath();
+        try {
+            Files.write(temp, state);
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed saving checkpoint " + checkpoint, ioe);
+        }
+    }
+
+    @Override
+    public byte[] loadCheckpoint(String name) {
+        Path checkpoint = new File(directory, name + CHECKPOINT_SUFFIX).toPath();
+        try {
+            return Files.exists(checkpoint) ? Files.readAllBytes(checkpoint) : null;
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed loading checkpoint " + checkpoint, ioe);
+        }
+    }
+
+    @Override
+    public void addMessage(String channel, String sender, String message) {
+        try {
+            append(Collections.singletonList(new IngestEntry(channel, sender, message, System.currentTimeMillis())));
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed appending to " + LOG_FILE, ioe);
+        }
+    }
+
+    /**
+     * appends the whole chunk as one write, there being nothing to gain from splitting it up locally
+     */
+    @Override
+    public List<Write> buildWrites(List<IngestEntry> entries) {
+        final List<IngestEntry> chunk = new ArrayList<>(entries);
+        return Collections.<Write> singletonList(() -> {
+            try {
+                append(chunk);
+                return Futures.immediateFuture(null);
+            } catch (IOException | RuntimeException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        });
+    }
+
+    /**
+     * indexing words in memory costs next to nothing, so overloaded or not, messages are indexed as they are appended
+     */
+    @Override
+    public List<Write> buildRawWrites(List<IngestEntry> entries) {
+        return buildWrites(entries);
+    }
+
+    @Override
+    public List<Write> buildIndexWrites(List<IngestEntry> entries) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Message getLastMessage(String channel, String sender) {
+        long[] seen;
+        lock.readLock().lock();
+        try {
+            seen = lastSeen.get(channel + '\u0000' + sender);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return (seen == null) ? null : readMessage(seen[0]);
+    }
+
+    @Override
+    public List<Message> getMessages(String channel, Date day) {
+        return getMessages(channel, day, Integer.MAX_VALUE, null).getMessages();
+    }
+
+    @Override
+    public int countMessages(String channel, Date day) {
+        lock.readLock().lock();
+        try {
+            PostingList list = days.get(dayKey(channel, day.getTime()));
+            return (list == null) ? 0 : list.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public MessagePage getMessages(String channel, Date day, int limit, String pagingToken) {
+        lock.readLock().lock();
+        try {
+            PostingList list = days.get(dayKey(channel, day.getTime()));
+            return (list == null) ? new MessagePage(new ArrayList<Message>(), null) : readPage(list.ascending(), limit, pagingToken);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * walks the days the range covers, skipping straight to where the range starts in each, so only the messages
+     * returned are read
+     */
+    @Override
+    public List<Message> getMessages(String channel, long from, long to, int limit, boolean newestFirst) {
+        List<Message> messages = new ArrayList<>();
+        if ((from >= to) || (limit <= 0)) {
+            return messages;
+        }
+
+        List<Long> dayStarts = new ArrayList<>();
+        for (long day = TimeKeeper.startOfDay(from); day < to; day = TimeKeeper.nextDay(day)) {
+            dayStarts.add(Long.valueOf(day));
+        }
+        if (newestFirst) {
+            Collections.reverse(dayStarts);
+        }
+
+        lock.readLock().lock();
+        try {
+            for (Long dayStart : dayStarts) {
+                PostingList list = days.get(channel + '\u0000' + dayStart);
+                if (list == null) {
+                    continue;
+                }
+
+                PostingList.Cursor cursor;
+                if (newestFirst) {
+                    cursor = list.descending();
+                    cursor.skipTo(to - 1, Long.MAX_VALUE);
+                    while (cursor.hasNext() && (cursor.peekTime() >= from) && (messages.size() < limit)) {
+                        messages.add(readMessage(cursor.next()));
+                    }
+                } else {
+                    cursor = list.ascending();
+                    cursor.skipTo(from, Long.MIN_VALUE);
+                    while (cursor.hasNext() && (cursor.peekTime() < to) && (messages.size() < limit)) {
+                        messages.add(readMessage(cursor.next()));
+                    }
+                }
+                if (messages.size() >= limit) {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    /**
+     * walks the user's messages newest first from the end of the range, so only the messages returned are read
+     */
+    @Override
+    public List<Message> getUserMessages(String channel, String user, long from, long to, int limit) {
+        List<Message> messages = new ArrayList<>();
+        if ((from >= to) || (limit <= 0)) {
+            return messages;
+        }
+
+        lock.readLock().lock();
+        try {
+            PostingList list = users.get(channel + '\u0000' + user);
+            if (list != null) {
+                PostingList.Cursor cursor = list.descending();
+                cursor.skipTo(to - 1, Long.MAX_VALUE);
+                while (cursor.hasNext() && (cursor.peekTime() >= from) && (messages.size() < limit)) {
+                    messages.add(readMessage(cursor.next()));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> getTopicMessages(String channel, String word) {
+        return getTopicMessages(channel, word, Integer.MAX_VALUE, null).getMessages();
+    }
+
+    @Override
+    public MessagePage getTopicMessages(String channel, String word, int limit, String pagingToken) {
+        lock.readLock().lock();
+        try {
+            PostingList list = topics.get(channel + '\u0000' + word);
+            return (list == null) ? new MessagePage(new ArrayList<Message>(), null) : readPage(list.descending(), limit, pagingToken);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * intersects the words' posting lists newest first, the shortest list proposing each candidate and the others
+     * skipping to it, or past it, a block at a time
+     */
+    @Override
+    public List<Message> getTopicMessages(String channel, List<String> words, int limit) {
+        List<Message> messages = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>(words.size());
+            for (String word : new LinkedHashSet<>(words)) {
+                if (tokenizer.isIndexed(word)) {
+                    PostingList list = topics.get(channel + '\u0000' + word);
+                    if (list == null) {
+                        return Collections.emptyList();
+                    }
+                    lists.add(list);
+                }
+            }
+            if (lists.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            Collections.sort(lists, new Comparator<PostingList>() {
+                @Override
+                public int compare(PostingList l1, PostingList l2) {
+                    return Integer.compare(l1.size(), l2.size());
+                }
+            });
+
+            PostingList.Cursor[] cursors = new PostingList.Cursor[lists.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = lists.get(i).descending();
+            }
+
+            PostingList.Cursor driver = cursors[0];
+            candidates: while (driver.hasNext() && (messages.size() < limit)) {
+                long time = driver.peekTime();
+                long offset = driver.peekOffset();
+                for (int i = 1; i < cursors.length; i++) {
+                    cursors[i].skipTo(time, offset);
+                    if (!cursors[i].hasNext()) {
+                        break candidates;
+                    }
+                    if ((cursors[i].peekTime() != time) || (cursors[i].peekOffset() != offset)) {
+                        driver.skipTo(cursors[i].peekTime(), cursors[i].peekOffset());
+                        continue candidates;
+                    }
+                }
+                messages.add(readMessage(driver.next()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return messages;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            flush();
+            log.force(false);
+            log.close();
+            writeIndexes();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getLogSize() {
+        lock.readLock().lock();
+        try {
+            return logSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void append(List<IngestEntry> entries) throws IOException {
+        Timer.Context timing = appendTimer.time();
+        lock.writeLock().lock();
+        try {
+            for (IngestEntry entry : entries) {
+                byte[] channel = entry.getChannel().getBytes(StandardCharsets.UTF_8);
+                byte[] sender = entry.getSender().getBytes(StandardCharsets.UTF_8);
+                byte[] message = entry.getMessage().getBytes(StandardCharsets.UTF_8);
+                if ((channel.length > 0xFFFF) || (sender.length > 0xFFFF) || (message.length > 0xFFFF)) {
+                    IRCConnector.LOGGER.error("Message too large to store on channel {} for user {}", entry.getChannel(), entry.getSender());
+                    continue;
+                }
+
+                int length = 8 + 2 + channel.length + 2 + sender.length + 2 + message.length;
+                if (writeBuffer.remaining() < (HEADER_SIZE + length)) {
+                    flush();
+                }
+
+                long offset = logSize + writeBuffer.position();
+                int start = writeBuffer.position();
+                writeBuffer.position(start + HEADER_SIZE);
+                writeBuffer.putLong(entry.getTimestamp());
+                putBytes(writeBuffer, channel);
+                putBytes(writeBuffer, sender);
+                putBytes(writeBuffer, message);
+                writeBuffer.putInt(start, length);
+                writeBuffer.putInt(start + 4, checksum(writeBuffer, start, length));
+
+                Instrumentation.recordIngest(entry.getChannel(), index(entry, offset, trendingTracker));
+            }
+            flush();
+
+            long now = System.currentTimeMillis();
+            if ((now - lastForce) >= FORCE_MILLIS) {
+                log.force(false);
+                lastForce = now;
+            }
+        } finally {
+            lock.writeLock().unlock();
+            timing.stop();
+        }
+    }
+
+    /**
+     * writes out the buffered records, so that everything indexed can be read
+     */
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            logSize += log.write(writeBuffer, logSize);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * @return the number of words indexed
+     */
+    private long index(IngestEntry entry, long offset, TrendingTracker tracker) {
+        String channel = entry.getChannel();
+        long time = entry.getTimestamp();
+        getList(days, dayKey(channel, time)).add(time, offset);
+        getList(users, channel + '\u0000' + entry.getSender()).add(time, offset);
+        // imported history can be appended after newer messages, so the latest by time wins, not by offset
+        long[] seen = lastSeen.get(channel + '\u0000' + entry.getSender());
+        if (seen == null) {
+            lastSeen.put(channel + '\u0000' + entry.getSender(), new long[] { offset, entry.getTimestamp() });
+        } else if (entry.getTimestamp() >= seen[1]) {
+            seen[0] = offset;
+            seen[1] = entry.getTimestamp();
+        }
+        return tokenizer.tokenize(entry.getMessage(), word -> {
+            // a word said twice in one message is only indexed once
+            getList(topics, channel + '\u0000' + word).add(time, offset);
+            if (tracker != null) {
+                tracker.record(channel, word, time);
+            }
+        });
+    }
+
+    private void rebuildIndexes() throws IOException {
+        clearIndexes();
+        scanLog(0);
+    }
+
+    private void clearIndexes() {
+        days.clear();
+        topics.clear();
+        users.clear();
+        lastSeen.clear();
+    }
+
+    /**
+     * scans the log from an offset, indexing every intact record, and cuts the log off after the last one
+     */
+    private void scanLog(long from) throws IOException {
+        long fileSize = log.size();
+        long offset = from;
+        ByteBuffer buffer = readBuffer.get();
+        while ((offset + HEADER_SIZE) <= fileSize) {
+            IngestEntry entry = readRecord(buffer, offset, fileSize);
+            if (entry == null) {
+                break;
+            }
+            index(entry, offset, null);
+            offset += HEADER_SIZE + buffer.getInt(0);
+        }
+
+        if (offset < fileSize) {
+            IRCConnector.LOGGER.warn("Discarding {} bytes of damaged records at the end of {}", fileSize - offset, LOG_FILE);
+            log.truncate(offset);
+        }
+        logSize = offset;
+    }
+
+    /**
+     * loads the indexes saved when the store was last closed
+     *
+     * @return how much of the log they cover, or -1 if there are none that can be used, leaving the indexes empty
+     */
+    private long readIndexes() {
+        File indexFile = new File(directory, INDEX_FILE);
+        int signature = tokenizer.getSignature();
+        if (!indexFile.isFile() || (signature == 0)) {
+            return -1;
+        }
+
+        CRC32 checksum = new CRC32();
+        try (DataInputStream in = new DataInputStream(
+                new CheckedInputStream(new BufferedInputStream(Files.newInputStream(indexFile.toPath()), INDEX_BUFFER_SIZE), checksum))) {
+            if ((in.readInt() != INDEX_VERSION) || (in.readInt() != signature)) {
+                IRCConnector.LOGGER.info("Reindexing {}, as {} was saved by another version or with other stop words", LOG_FILE, INDEX_FILE);
+                return -1;
+            }
+            long indexed = in.readLong();
+            if ((indexed < 0) || (indexed > log.size())) {
+                IRCConnector.LOGGER.warn("Reindexing {}, as {} covers more than is there", LOG_FILE, INDEX_FILE);
+                return -1;
+            }
+            readLists(in, days);
+            readLists(in, topics);
+            readLists(in, users);
+            int seen = in.readInt();
+            for (int i = 0; i < seen; i++) {
+                lastSeen.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+            }
+            int expected = (int) checksum.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Checksum mismatch");
+            }
+            return indexed;
+        } catch (IOException | RuntimeException e) {
+            IRCConnector.LOGGER.warn("Reindexing {}, as {} is damaged", LOG_FILE, INDEX_FILE, e);
+            clearIndexes();
+            return -1;
+        }
+    }
+
+    /**
+     * saves the indexes for the next start, after the log has been flushed, so that they cover all of it
+     */
+    private void writeIndexes() {
+        int signature = tokenizer.getSignature();
+        if (signature == 0) {
+            return;
+        }
+
+        Path indexPath = new File(directory, INDEX_FILE).toPath();
+        Path tempPath = new File(directory, INDEX_FILE + ".tmp").toPath();
+        CRC32 checksum = new CRC32();
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), INDEX_BUFFER_SIZE), checksum))) {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(signature);
+                out.writeLong(logSize);
+                writeLists(out, days);
+                writeLists(out, topics);
+                writeLists(out, users);
+                out.writeInt(lastSeen.size());
+                for (Map.Entry<String, long[]> seen : lastSeen.entrySet()) {
+                    out.writeUTF(seen.getKey());
+                    out.writeLong(seen.getValue()[0]);
+                    out.writeLong(seen.getValue()[1]);
+                }
+                out.writeInt((int) checksum.getValue());
+            }
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            IRCConnector.LOGGER.error("Failed saving {}, the whole of {} will be reindexed on the next start", INDEX_FILE, LOG_FILE, ioe);
+        }
+    }
+
+    private static void readLists(DataInputStream in, Map<String, PostingList> lists) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            lists.put(in.readUTF(), PostingList.readFrom(in));
+        }
+    }
+
+    private static void writeLists(DataOutputStream out, Map<String, PostingList> lists) throws IOException {
+        out.writeInt(lists.size());
+        for (Map.Entry<String, PostingList> list : lists.entrySet()) {
+            out.writeUTF(list.getKey());
+            list.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * reads the record at an offset into the buffer, returning null if it is incomplete or damaged
+     */
+    private IngestEntry readRecord(ByteBuffer buffer, long offset, long fileSize) throws IOException {
+        buffer.clear();
+        buffer.limit(HEADER_SIZE);
+        readFully(buffer, offset);
+        int length = buffer.getInt(0);
+        if ((length <= 0) || ((HEADER_SIZE + length) > MAX_RECORD_SIZE) || ((offset + HEADER_SIZE + length) > fileSize)) {
+            return null;
+        }
+
+        buffer.limit(HEADER_SIZE + length);
+        readFully(buffer, offset + HEADER_SIZE);
+        if (checksum(buffer, 0, length) != buffer.getInt(4)) {
+            return null;
+        }
+
+        buffer.position(HEADER_SIZE);
+        long timestamp = buffer.getLong();
+        String channel = getString(buffer);
+        String sender = getString(buffer);
+        String message = getString(buffer);
+        return new IngestEntry(channel, sender, message, timestamp);
+    }
+
+    private Message readMessage(long offset) {
+        try {
+            IngestEntry entry = readRecord(readBuffer.get(), offset, Long.MAX_VALUE);
+            if (entry == null) {
+                throw new IllegalStateException("Damaged record at offset " + offset + " of " + LOG_FILE);
+            }
+            return new Message(entry.getChannel(), entry.getSender(), entry.getTimestamp(), entry.getMessage());
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed reading offset " + offset + " of " + LOG_FILE, ioe);
+        }
+    }
+
+    private MessagePage readPage(PostingList.Cursor cursor, int limit, String pagingToken) {
+        if (pagingToken != null) {
+            int split = pagingToken.indexOf(':');
+            cursor.skipPast(Long.parseLong(pagingToken.substring(0, split)), Long.parseLong(pagingToken.substring(split + 1)));
+        }
+
+        List<Message> messages = new ArrayList<>(Math.min(limit, 1024));
+        long time = -1;
+        long offset = -1;
+        while (cursor.hasNext() && (messages.size() < limit)) {
+            time = cursor.peekTime();
+            offset = cursor.next();
+            messages.add(readMessage(offset));
+        }
+        return new MessagePage(messages, cursor.hasNext() ? time + ":" + offset : null);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long filePosition = position;
+        while (buffer.hasRemaining()) {
+            int read = log.read(buffer, filePosition);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + LOG_FILE + " at " + filePosition);
+            }
+            filePosition += read;
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int start, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(start + HEADER_SIZE + length);
+        record.position(start + HEADER_SIZE);
+        synchronized (crc) {
+            crc.reset();
+            crc.update(record);
+            return (int) crc.getValue();
+        }
+    }
+
+    private String dayKey(String channel, long time) {
+        return channel + '\u0000' + TimeKeeper.startOfDay(time);
+    }
+
+    private static PostingList getList(Map<String, PostingList> lists, String key) {
+        PostingList list = lists.get(key);
+        if (list == null) {
+            list = new PostingList();
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
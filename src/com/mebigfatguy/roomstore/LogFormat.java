@@ -0,0 +1,74 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * the irc client log layouts that can be imported
+ */
+public enum LogFormat {
+
+    /**
+     * 12:34 &lt;nick&gt; message, with the date given by --- Log opened and --- Day changed lines
+     */
+    IRSSI(Pattern.compile("^(?:--- Log opened |--- Day changed |\\d{2}:\\d{2}(?::\\d{2})? <)")),
+
+    /**
+     * 2016-01-02 12:34:56 nick message, tab separated
+     */
+    WEECHAT(Pattern.compile("^\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\t")),
+
+    /**
+     * [12:34:56] &lt;nick&gt; message, with the date taken from the file name, as znc writes a file a day
+     */
+    ZNC(Pattern.compile("^\\[\\d{2}:\\d{2}(?::\\d{2})?\\] "));
+
+    private static final int DETECT_LINES = 100;
+    // irssi's lines are the loosest, so it is tried last
+    private static final LogFormat[] DETECT_ORDER = { WEECHAT, ZNC, IRSSI };
+
+    private final Pattern signature;
+
+    LogFormat(Pattern linePattern) {
+        signature = linePattern;
+    }
+
+    /**
+     * guesses a log's format from its first lines
+     *
+     * @return the format, or null if none of the first lines look like any format
+     */
+    public static LogFormat detect(Path file) throws IOException {
+        try (BufferedReader br = LogParser.openReader(file)) {
+            String line;
+            for (int i = 0; (i < DETECT_LINES) && ((line = br.readLine()) != null); i++) {
+                for (LogFormat format : DETECT_ORDER) {
+                    if (format.signature.matcher(line).find()) {
+                        return format;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
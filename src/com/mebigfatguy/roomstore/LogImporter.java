@@ -0,0 +1,263 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * loads irssi, weechat and znc logs into a message store, through the same writes, and so the same word indexing and
+ * counter aggregation, as live ingest. The log files are split between fork join workers, each streaming its file and
+ * writing it a day, or a chunk, at a time, so memory use doesn't grow with the size of the logs. Writes are sent
+ * asynchronously, with a cap on how many can be in flight across all workers, so parsing keeps going while the store
+ * catches up, without flooding it. Progress and throughput are logged as the import goes.
+ */
+public class LogImporter {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private static final int CHUNK_SIZE = 500;
+    private static final long REPORT_SECONDS = 10;
+
+    private final IngestSink sink;
+    private final int parallelism;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final Meter importRate = Instrumentation.REGISTRY.meter("import.messages");
+    private LogFormat format;
+    private String network;
+    private int fileCount;
+    private long startTime;
+
+    public LogImporter(IngestSink ingestSink, int threads, int maxInFlightWrites) {
+        sink = ingestSink;
+        parallelism = Math.max(1, threads);
+        maxInFlight = Math.max(1, maxInFlightWrites);
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * reads every log as this format, rather than guessing each log's format from its first lines
+     */
+    public void setFormat(LogFormat logFormat) {
+        format = logFormat;
+    }
+
+    /**
+     * stores the logs' channels as network/#channel, as channels recorded from that network are
+     */
+    public void setNetwork(String networkName) {
+        network = networkName;
+    }
+
+    /**
+     * imports the logs, and any logs in directories below them, returning once everything has been written
+     */
+    public void importLogs(List<File> logs) throws IOException, InterruptedException {
+        List<Path> files = new ArrayList<>();
+        for (File log : logs) {
+            try (Stream<Path> paths = Files.walk(log.toPath())) {
+                files.addAll(paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+            }
+        }
+        fileCount = files.size();
+        startTime = System.currentTimeMillis();
+        IRCConnector.LOGGER.info("Importing {} log files with {} threads", Integer.valueOf(fileCount), Integer.valueOf(parallelism));
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("ImportReporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(this::report, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ImportTask(Collections.unmodifiableList(files), 0, files.size()));
+            // waits for the last writes to land
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            pool.shutdown();
+            reporter.shutdownNow();
+        }
+        report();
+    }
+
+    public long getImportedCount() {
+        return imported.get();
+    }
+
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public long getFailedWriteCount() {
+        return failedWrites.get();
+    }
+
+    private void importFile(Path file) {
+        String channel = LogParser.channelOf(file);
+        if (channel == null) {
+            IRCConnector.LOGGER.warn("Skipping {}, as its channel can't be told from its name", file);
+            return;
+        }
+        if (network != null) {
+            channel = network + '/' + channel;
+        }
+
+        try {
+            LogFormat fileFormat = (format != null) ? format : LogFormat.detect(file);
+            if (fileFormat == null) {
+                IRCConnector.LOGGER.warn("Skipping {}, as it isn't in a known log format", file);
+                return;
+            }
+
+            try (LogParser parser = new LogParser(file, fileFormat, channel)) {
+                List<IngestEntry> chunk = new ArrayList<>(CHUNK_SIZE);
+                long chunkDay = 0;
+                IngestEntry entry;
+                while ((entry = parser.next()) != null) {
+                    if (!chunk.isEmpty() && ((chunk.size() >= CHUNK_SIZE) || (parser.getDayStart() != chunkDay))) {
+                        write(chunk);
+                    }
+                    chunkDay = parser.getDayStart();
+                    chunk.add(entry);
+                }
+                write(chunk);
+                skipped.addAndGet(parser.getSkippedCount());
+            }
+            bytesDone.addAndGet(Files.size(file));
+        } catch (IOException ioe) {
+            IRCConnector.LOGGER.error("Failed importing {}", file, ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            filesDone.incrementAndGet();
+        }
+    }
+
+    /**
+     * sends the chunk's writes, waiting for room when too many are in flight, and clears it for reuse
+     */
+    private void write(List<IngestEntry> chunk) throws InterruptedException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        for (IngestSink.Write write : sink.buildWrites(chunk)) {
+            inFlight.acquire();
+            ListenableFuture<?> future;
+            try {
+                future = write.execute();
+            } catch (RuntimeException e) {
+                inFlight.release();
+                writeFailed(e);
+                continue;
+            }
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    inFlight.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    inFlight.release();
+                    writeFailed(t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        imported.addAndGet(chunk.size());
+        importRate.mark(chunk.size());
+        chunk.clear();
+    }
+
+    private void writeFailed(Throwable t) {
+        // only the first few are logged, a store that is down would otherwise bury the log
+        if (failedWrites.incrementAndGet() <= 10) {
+            IRCConnector.LOGGER.error("Failed writing imported messages", t);
+        }
+    }
+
+    private void report() {
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+        IRCConnector.LOGGER.info("Imported {} messages from {} of {} files in {}s, {} messages/s, {} MB/s, {} lines skipped, {} writes failed",
+                Long.valueOf(imported.get()), Long.valueOf(filesDone.get()), Integer.valueOf(fileCount), Long.valueOf((long) seconds),
+                Long.valueOf((long) (imported.get() / seconds)), String.format("%.1f", Double.valueOf(bytesDone.get() / seconds / (1024 * 1024))),
+                Long.valueOf(skipped.get()), Long.valueOf(failedWrites.get()));
+    }
+
+    /**
+     * imports a range of the files, halving it between workers until there is a file each
+     */
+    private class ImportTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+
+        ImportTask(List<Path> importFiles, int fromIndex, int toIndex) {
+            files = importFiles;
+            from = fromIndex;
+            to = toIndex;
+        }
+
+        @Override
+        protected void compute() {
+            if ((to - from) <= 1) {
+                if (to > from) {
+                    importFile(files.get(from));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new ImportTask(files, from, middle), new ImportTask(files, middle, to));
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.Month;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.TextStyle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * reads the messages out of one irc client log, a line at a time, so a log of any size is read in the same little
+ * memory. Joins, parts, actions and other events are skipped, as they aren't recorded live either, as are lines that
+ * can't be parsed. Logs are read as utf-8, with undecodable bytes replaced rather than failing the file.
+ */
+class LogParser implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final Pattern IRSSI_DAY = Pattern.compile("^--- (?:Log opened|Day changed) \\w{3} (\\w{3}) +(\\d{1,2}) (?:\\d{2}:\\d{2}:\\d{2} )?(\\d{4})");
+    private static final Pattern IRSSI_MESSAGE = Pattern.compile("^(\\d{2}):(\\d{2})(?::(\\d{2}))? <[ @+%&~]?([^>]+)> (.*)$");
+    private static final Pattern WEECHAT_MESSAGE = Pattern
+            .compile("^(\\d{4})-(\\d{2})-(\\d{2}) (\\d{2}):(\\d{2}):(\\d{2})\t[@+%&~]?([^\t]+)\t(.*)$");
+    private static final Pattern ZNC_MESSAGE = Pattern.compile("^\\[(\\d{2}):(\\d{2})(?::(\\d{2}))?\\] <[@+%&~]?([^>]+)> (.*)$");
+    private static final Pattern FILE_DATE = Pattern.compile("(\\d{4})-?(\\d{2})-?(\\d{2})");
+    private static final Pattern DATE_SUFFIX = Pattern.compile("[._-]\\d{4}-?\\d{2}-?\\d{2}$");
+    // the prefixes weechat puts in the nick column for events rather than messages
+    private static final Set<String> WEECHAT_EVENTS = new HashSet<>(Arrays.asList("-->", "<--", "--", "*", " *", "=!=", ""));
+    private static final Map<String, Month> MONTHS = new HashMap<>();
+
+    static {
+        for (Month month : Month.values()) {
+            MONTHS.put(month.getDisplayName(TextStyle.SHORT, Locale.ENGLISH), month);
+        }
+    }
+
+    private final BufferedReader reader;
+    private final LogFormat format;
+    private final String channel;
+    private final Matcher dayMatcher = IRSSI_DAY.matcher("");
+    private final Matcher messageMatcher;
+    private LocalDate day;
+    private long dayStart;
+    private boolean regularDay;
+    private long skipped;
+
+    LogParser(Path file, LogFormat logFormat, String logChannel) throws IOException {
+        format = logFormat;
+        channel = logChannel;
+        switch (format) {
+            case WEECHAT:
+                messageMatcher = WEECHAT_MESSAGE.matcher("");
+            break;
+
+            case ZNC:
+                messageMatcher = ZNC_MESSAGE.matcher("");
+                Matcher dateMatcher = FILE_DATE.matcher(file.getFileName().toString());
+                if (dateMatcher.find()) {
+                    setDay(parse(dateMatcher, 1), parse(dateMatcher, 2), parse(dateMatcher, 3));
+                }
+            break;
+
+            default:
+                messageMatcher = IRSSI_MESSAGE.matcher("");
+            break;
+        }
+        reader = openReader(file);
+    }
+
+    static BufferedReader openReader(Path file) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(file),
+                StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE)),
+                BUFFER_SIZE);
+    }
+
+    /**
+     * works out which channel a log is of from its path, as irssi (#channel.log), weechat (irc.server.#channel.weechatlog)
+     * and znc (network_#channel_20160102.log or #channel/2016-01-02.log) name them
+     *
+     * @return the channel, or null if there is no #channel in the path
+     */
+    static String channelOf(Path file) {
+        for (Path p = file; (p != null) && (p.getFileName() != null); p = p.getParent()) {
+            String name = p.getFileName().toString();
+            int hash = name.indexOf('#');
+            if (hash >= 0) {
+                String channel = name.substring(hash);
+                if (p == file) {
+                    // only a trailing date is cut, as underscores, dots and dashes can be part of the channel name
+                    int dot = channel.lastIndexOf('.');
+                    if (dot > 0) {
+                        channel = channel.substring(0, dot);
+                    }
+                    channel = DATE_SUFFIX.matcher(channel).replaceFirst("");
+                }
+                return (channel.length() > 1) ? channel : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the next message, or null at the end of the log
+     */
+    IngestEntry next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            IngestEntry entry = parseLine(line);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the start of the day of the last message returned
+     */
+    long getDayStart() {
+        return dayStart;
+    }
+
+    /**
+     * @return the number of lines that were neither messages nor skippable events
+     */
+    long getSkippedCount() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private IngestEntry parseLine(String line) {
+        if (line.isEmpty()) {
+            return null;
+        }
+
+        if (format == LogFormat.WEECHAT) {
+            if (!messageMatcher.reset(line).matches()) {
+                skipped++;
+                return null;
+            }
+            if (WEECHAT_EVENTS.contains(messageMatcher.group(7))) {
+                return null;
+            }
+            int year = parse(messageMatcher, 1);
+            int month = parse(messageMatcher, 2);
+            int dayOfMonth = parse(messageMatcher, 3);
+            if (((day == null) || (day.getYear() != year) || (day.getMonthValue() != month) || (day.getDayOfMonth() != dayOfMonth))
+                    && !setDay(year, month, dayOfMonth)) {
+                skipped++;
+                return null;
+            }
+            return toEntry(messageMatcher.group(7), messageMatcher.group(8), parse(messageMatcher, 4), parse(messageMatcher, 5),
+                    parse(messageMatcher, 6));
+        }
+
+        if (format == LogFormat.IRSSI) {
+            if (line.startsWith("---")) {
+                if (dayMatcher.reset(line).find()) {
+                    Month month = MONTHS.get(dayMatcher.group(1));
+                    if (month != null) {
+                        setDay(parse(dayMatcher, 3), month.getValue(), parse(dayMatcher, 2));
+                    }
+                }
+                return null;
+            }
+        }
+
+        if (!messageMatcher.reset(line).matches()) {
+            // actions, joins, parts and the like
+            if ((line.indexOf(" -!- ") < 0) && (line.indexOf(" * ") < 0) && (line.indexOf("*** ") < 0)) {
+                skipped++;
+            }
+            return null;
+        }
+        if (day == null) {
+            skipped++;
+            return null;
+        }
+        int seconds = (messageMatcher.group(3) == null) ? 0 : parse(messageMatcher, 3);
+        return toEntry(messageMatcher.group(4).trim(), messageMatcher.group(5), parse(messageMatcher, 1), parse(messageMatcher, 2), seconds);
+    }
+
+    private IngestEntry toEntry(String sender, String message, int hours, int minutes, int seconds) {
+        if ((hours > 23) || (minutes > 59) || (seconds > 59)) {
+            skipped++;
+            return null;
+        }
+        return new IngestEntry(channel, sender, message, timeOfDay(hours, minutes, seconds));
+    }
+
+    /**
+     * @return whether the day was a real one
+     */
+    private boolean setDay(int year, int month, int dayOfMonth) {
+        try {
+            day = LocalDate.of(year, month, dayOfMonth);
+        } catch (DateTimeException dte) {
+            return false;
+        }
+        ZonedDateTime start = day.atStartOfDay(ZONE);
+        dayStart = start.toInstant().toEpochMilli();
+        regularDay = (start.plusDays(1).toInstant().toEpochMilli() - dayStart) == DAY_MILLIS;
+        return true;
+    }
+
+    private long timeOfDay(int hours, int minutes, int seconds) {
+        if (regularDay) {
+            return dayStart + (((hours * 60L) + minutes) * 60L + seconds) * 1000L;
+        }
+        // a day with a daylight saving change can't be counted off from midnight
+        return LocalDateTime.of(day, LocalTime.of(hours, minutes, seconds)).atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static int parse(Matcher m, int group) {
+        return Integer.parseInt(m.group(group));
+    }
+}
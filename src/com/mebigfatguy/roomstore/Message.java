@@ -18,16 +18,14 @@
  */
 package com.mebigfatguy.roomstore;
 
-import com.datastax.driver.core.LocalDate;
-
 public class Message implements Comparable<Message> {
 
     private final String channel;
     private final String sender;
-    private final LocalDate time;
+    private final long time;
     private final String message;
 
-    public Message(String msgChannel, String msgSender, LocalDate msgTime, String msgMessage) {
+    public Message(String msgChannel, String msgSender, long msgTime, String msgMessage) {
         channel = msgChannel;
         sender = msgSender;
         time = msgTime;
@@ -42,7 +40,10 @@ public class Message implements Comparable<Message> {
         return sender;
     }
 
-    public LocalDate getTime() {
+    /**
+     * @return when the message was said, in milliseconds since the epoch
+     */
+    public long getTime() {
         return time;
     }
 
@@ -52,7 +53,7 @@ public class Message implements Comparable<Message> {
 
     @Override
     public int hashCode() {
-        return channel.hashCode() ^ sender.hashCode() ^ time.hashCode() ^ message.hashCode();
+        return channel.hashCode() ^ sender.hashCode() ^ Long.hashCode(time) ^ message.hashCode();
     }
 
     @Override
@@ -63,7 +64,7 @@ public class Message implements Comparable<Message> {
 
         Message that = (Message) o;
 
-        return channel.equals(that.channel) && sender.equals(that.sender) && time.equals(that.time) && message.equals(that.message);
+        return channel.equals(that.channel) && sender.equals(that.sender) && (time == that.time) && message.equals(that.message);
     }
 
     @Override
@@ -73,7 +74,7 @@ public class Message implements Comparable<Message> {
             return cmp;
         }
 
-        cmp = time.getDaysSinceEpoch() - that.time.getDaysSinceEpoch();
+        cmp = Long.compare(time, that.time);
         if (cmp != 0) {
             return cmp;
         }
@@ -0,0 +1,86 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+
+/**
+ * lazily turns the rows of a paged query into messages. Only one page of rows is held at a time, the driver fetching
+ * the next page when the current one is used up, and the next bucket being queried when the current one runs out, so
+ * memory stays flat however large the partitions are.
+ */
+public class MessageIterator implements Iterator<Message> {
+
+    private final Session session;
+    private final BucketScan scan;
+    private final int fetchSize;
+    private int bucket = -1;
+    private ResultSet rs;
+
+    MessageIterator(Session s, BucketScan bucketScan, int rowsPerFetch) {
+        session = s;
+        scan = bucketScan;
+        fetchSize = rowsPerFetch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((rs == null) || rs.isExhausted()) {
+            if ((bucket + 1) >= scan.size()) {
+                return false;
+            }
+            bucket++;
+            rs = session.execute(scan.getStatement(bucket).setFetchSize(fetchSize));
+        }
+        return true;
+    }
+
+    @Override
+    public Message next() {
+        Row row = hasNext() ? rs.one() : null;
+        if (row == null) {
+            throw new NoSuchElementException();
+        }
+        return CassandraWriter.toMessage(scan.getChannel(), row);
+    }
+
+    /**
+     * returns a token that resumes the query after the page currently being iterated, or null if this is the last
+     * page. It is only exact when called once the current page is consumed, see {@link #isPageConsumed()}.
+     */
+    public String getPagingToken() {
+        if (rs != null) {
+            PagingState state = rs.getExecutionInfo().getPagingState();
+            if (state != null) {
+                return scan.getName(bucket) + ':' + state;
+            }
+        }
+        return ((bucket + 1) < scan.size()) ? scan.getName(bucket + 1) : null;
+    }
+
+    public boolean isPageConsumed() {
+        return (rs == null) || (rs.getAvailableWithoutFetching() == 0);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.List;
+
+/**
+ * one page of a query's results, along with the token needed to fetch the next page, or null if there are no more
+ */
+public class MessagePage {
+
+    private final List<Message> messages;
+    private final String pagingToken;
+
+    public MessagePage(List<Message> pageMessages, String nextPagingToken) {
+        messages = pageMessages;
+        pagingToken = nextPagingToken;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public String getPagingToken() {
+        return pagingToken;
+    }
+
+    public boolean hasMore() {
+        return pagingToken != null;
+    }
+}
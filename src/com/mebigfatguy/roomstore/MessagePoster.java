@@ -18,67 +18,279 @@
  */
 package com.mebigfatguy.roomstore;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jibble.pircbot.PircBot;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
+/**
+ * sends private messages to users without letting any one of them hog the connection. Each recipient has a bounded
+ * queue of lines, recipients with something to send take turns one line at a time, and lines go out no faster than a
+ * token bucket allows, so that the server's flood protection isn't tripped. PircBot's own fixed message delay is
+ * turned off, as the bucket replaces it.
+ */
 public final class MessagePoster implements Runnable {
 
-    private PircBot bot;
+    public static final double DEFAULT_LINES_PER_SECOND = 1.0;
+    public static final int DEFAULT_BURST = 4;
+    public static final int DEFAULT_MAX_BACKLOG = 500;
+
+    private final double linesPerSecond;
+    private final int burst;
+    private final int maxBacklog;
+    private final ConcurrentMap<String, Recipient> recipients = new ConcurrentHashMap<>();
+    private final BlockingQueue<Recipient> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final Timer latency = Instrumentation.REGISTRY.timer("poster.latency");
+    private String name = "poster";
+    private LineSender sender;
     private Thread thread;
-    private Deque<Pair<String, String>> queue;
-    
+    private double tokens;
+    private long lastRefill;
+
     public MessagePoster() {
-        queue = new ArrayDeque<Pair<String, String>>();
+        this(DEFAULT_LINES_PER_SECOND, DEFAULT_BURST, DEFAULT_MAX_BACKLOG);
+    }
+
+    /**
+     * @param rate
+     *            lines sent per second, which must be more than 0, as no rate at all would never send, and a negative one
+     *            would send without any limit
+     */
+    public MessagePoster(double rate, int burstSize, int backlog) {
+        if (!(rate > 0.0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Lines per second must be more than 0, not " + rate);
+        }
+        linesPerSecond = rate;
+        burst = Math.max(1, burstSize);
+        maxBacklog = Math.max(1, backlog);
+    }
+
+    /**
+     * names the posting thread and the metrics, which must be unique when there is more than one poster
+     */
+    public void setName(String posterName) {
+        name = posterName;
     }
-    
-    public void startPosting(PircBot b) {
-        bot = b;
+
+    public void startPosting(PircBot bot) {
+        bot.setMessageDelay(0);
+        startPosting(bot::sendMessage);
+    }
+
+    public void startPosting(LineSender lineSender) {
+        sender = lineSender;
+        Instrumentation.gauge(MetricRegistry.name(name, "queueDepth"), () -> Integer.valueOf(pending.get()));
+        Instrumentation.gauge(MetricRegistry.name(name, "recipients"), () -> Integer.valueOf(recipients.size()));
+        Instrumentation.gauge(MetricRegistry.name(name, "sent"), () -> Long.valueOf(sent.get()));
+        Instrumentation.gauge(MetricRegistry.name(name, "discarded"), () -> Long.valueOf(discarded.get()));
         if (thread == null) {
+            tokens = burst;
+            lastRefill = System.nanoTime();
             thread = new Thread(this);
-            thread.setName("MessagePoster");
+            thread.setName("MessagePoster-" + name);
             thread.start();
         }
     }
-    
-    public void post(String sender, String message) {
-        
-        Pair<String, String> pair = new Pair<String, String>(sender, message);
-        synchronized(queue) {
-            queue.add(pair);
-            queue.notifyAll();
+
+    /**
+     * queues a message for a recipient, a line at a time. Lines that don't fit in the recipient's backlog are dropped.
+     *
+     * @return whether all the lines were queued
+     */
+    public boolean post(String recipient, String message) {
+        final String[] lines = message.split("\n");
+        final long queuedAt = System.nanoTime();
+        final int[] rejected = new int[1];
+        recipients.compute(recipient, (name, r) -> {
+            if (r == null) {
+                r = new Recipient(name, maxBacklog);
+            }
+            for (String line : lines) {
+                if (!line.isEmpty()) {
+                    if (r.lines.offer(new QueuedLine(line, queuedAt))) {
+                        pending.incrementAndGet();
+                    } else {
+                        rejected[0]++;
+                    }
+                }
+            }
+            if (!r.lines.isEmpty() && r.scheduled.compareAndSet(false, true)) {
+                ready.offer(r);
+            }
+            return r;
+        });
+
+        if (rejected[0] > 0) {
+            discarded.addAndGet(rejected[0]);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * throws away everything waiting to be sent to a recipient
+     *
+     * @return the number of lines discarded
+     */
+    public int cancel(String recipient) {
+        return truncate(recipient, 0);
+    }
+
+    /**
+     * trims a recipient's backlog down to the first keep lines
+     *
+     * @return the number of lines discarded
+     */
+    public int truncate(String recipient, int keep) {
+        Recipient r = recipients.get(recipient);
+        if (r == null) {
+            return 0;
+        }
+
+        List<QueuedLine> lines = new ArrayList<>();
+        r.lines.drainTo(lines);
+        int removed = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            if ((i >= keep) || !r.lines.offer(lines.get(i))) {
+                removed++;
+            }
         }
+
+        pending.addAndGet(-removed);
+        discarded.addAndGet(removed);
+        return removed;
+    }
+
+    public int getQueueDepth() {
+        return pending.get();
     }
-    
+
+    public int getQueueDepth(String recipient) {
+        Recipient r = recipients.get(recipient);
+        return (r == null) ? 0 : r.lines.size();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
     public void stopPosting() {
         if (thread != null) {
             try {
                 thread.interrupt();
                 thread.join();
-            } catch (InterruptedException ie) {   
+            } catch (InterruptedException ie) {
             } finally {
                 thread = null;
             }
         }
     }
-    
+
     @Override
     public void run() {
         try {
             while (!Thread.interrupted()) {
-                Pair<String, String> pair;
-                synchronized(queue) {
-                    while (queue.isEmpty()) {
-                        queue.wait();
-                    }
-                    pair = queue.removeFirst();
+                Recipient r = ready.take();
+                QueuedLine line = r.lines.poll();
+                if (line != null) {
+                    pending.decrementAndGet();
+                    acquireToken();
+                    sender.send(r.name, line.text);
+                    sent.incrementAndGet();
+                    latency.update(System.nanoTime() - line.queuedAt, TimeUnit.NANOSECONDS);
                 }
-                bot.sendMessage(pair.getKey(), pair.getValue());
+                reschedule(r);
             }
-        } catch (InterruptedException ie) {      
+        } catch (InterruptedException ie) {
         }
     }
 
+    /**
+     * puts a recipient at the back of the line if it has more to send, otherwise forgets about it
+     */
+    private void reschedule(Recipient r) {
+        if (!r.lines.isEmpty()) {
+            ready.offer(r);
+            return;
+        }
+
+        r.scheduled.set(false);
+        recipients.computeIfPresent(r.name, (name, current) -> {
+            if (current != r) {
+                return current;
+            }
+            if (!r.lines.isEmpty()) {
+                if (r.scheduled.compareAndSet(false, true)) {
+                    ready.offer(r);
+                }
+                return r;
+            }
+            return r.scheduled.get() ? r : null;
+        });
+    }
+
+    private void acquireToken() throws InterruptedException {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (((now - lastRefill) * linesPerSecond) / TimeUnit.SECONDS.toNanos(1)));
+        lastRefill = now;
+
+        if (tokens < 1.0) {
+            long waitNanos = (long) (((1.0 - tokens) * TimeUnit.SECONDS.toNanos(1)) / linesPerSecond);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (((now - lastRefill) * linesPerSecond) / TimeUnit.SECONDS.toNanos(1)));
+            lastRefill = now;
+        }
+        tokens -= 1.0;
+    }
+
+    /**
+     * what actually puts a line on the wire, normally the bot's sendMessage
+     */
+    public interface LineSender {
+        void send(String recipient, String line);
+    }
+
+    /**
+     * a line waiting to be sent, and when it was posted, for timing how long lines wait
+     */
+    private static class QueuedLine {
+        final String text;
+        final long queuedAt;
+
+        QueuedLine(String lineText, long queuedNanos) {
+            text = lineText;
+            queuedAt = queuedNanos;
+        }
+    }
+
+    private static class Recipient {
+        final String name;
+        final BlockingQueue<QueuedLine> lines;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Recipient(String recipientName, int backlog) {
+            name = recipientName;
+            lines = new ArrayBlockingQueue<>(backlog);
+        }
+    }
 }
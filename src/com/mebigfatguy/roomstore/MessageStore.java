@@ -0,0 +1,107 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * where messages are recorded and read back from. CassandraWriter keeps them in a cluster, LocalStore in files on this
+ * machine. Stores are also the ingest pipeline's sink.
+ */
+public interface MessageStore extends IngestSink, Closeable {
+
+    /**
+     * sets how messages are split into indexed words
+     */
+    void setTokenizer(MessageTokenizer messageTokenizer);
+
+    /**
+     * counts each indexed word of the messages recorded from now on in a tracker, for ~ top and ~ trending
+     */
+    void setTrendingTracker(TrendingTracker tracker);
+
+    /**
+     * saves an opaque piece of state under a name, replacing what was saved before
+     */
+    void saveCheckpoint(String name, byte[] state);
+
+    /**
+     * returns the state last saved under a name, or null if nothing has been
+     */
+    byte[] loadCheckpoint(String name);
+
+    /**
+     * records one message immediately, bypassing the ingest pipeline
+     */
+    void addMessage(String channel, String sender, String message);
+
+    /**
+     * returns the last thing a user said in a channel, or null if they haven't been seen
+     */
+    Message getLastMessage(String channel, String sender);
+
+    /**
+     * returns all the messages from a day, oldest first
+     */
+    List<Message> getMessages(String channel, Date day);
+
+    /**
+     * fetches at most limit messages from a day, oldest first, starting from where a previous page left off
+     *
+     * @param pagingToken
+     *            the token of the previous page, or null to start from the beginning of the day
+     */
+    MessagePage getMessages(String channel, Date day, int limit, String pagingToken);
+
+    /**
+     * returns how many messages there are from a day, without reading them
+     */
+    int countMessages(String channel, Date day);
+
+    /**
+     * returns at most limit of the messages said from one time up to, but not including, another: the oldest of them,
+     * oldest first, or if newestFirst, the newest of them, newest first
+     */
+    List<Message> getMessages(String channel, long from, long to, int limit, boolean newestFirst);
+
+    /**
+     * returns at most limit of the messages a user said from one time up to, but not including, another, newest first
+     */
+    List<Message> getUserMessages(String channel, String user, long from, long to, int limit);
+
+    /**
+     * returns all the messages that mention a word, newest first
+     */
+    List<Message> getTopicMessages(String channel, String word);
+
+    /**
+     * fetches at most limit topic messages, newest first, starting from where a previous page left off
+     *
+     * @param pagingToken
+     *            the token of the previous page, or null to start from the newest message
+     */
+    MessagePage getTopicMessages(String channel, String word, int limit, String pagingToken);
+
+    /**
+     * returns up to limit messages, newest first, that mention all of the words
+     */
+    List<Message> getTopicMessages(String channel, List<String> words, int limit);
+}
@@ -0,0 +1,188 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * splits message text into lower cased words for indexing in a single pass, without regular expressions. Words are
+ * broken at whitespace and at . , ? : and /, the same places the old split pattern broke them. The lower cased
+ * characters are built in a per thread buffer and looked up in a small table of recently seen words, so the common
+ * words that make up most of the text don't allocate a new String each time they are seen. Instances are thread safe.
+ */
+public class MessageTokenizer {
+
+    private static final int TABLE_SIZE = 8192;
+    private static final int MAX_CACHED_LENGTH = 32;
+    private static final String[] ASCII_PREFIXES = new String[128];
+
+    static {
+        for (char c = 0; c < ASCII_PREFIXES.length; c++) {
+            ASCII_PREFIXES[c] = String.valueOf(c);
+        }
+    }
+
+    private final StopWordFilter stopWords;
+    private final AtomicReferenceArray<String> words = new AtomicReferenceArray<>(TABLE_SIZE);
+    private final ThreadLocal<char[]> buffers = ThreadLocal.withInitial(() -> new char[512]);
+
+    public MessageTokenizer() {
+        this(StopWords.ENGLISH);
+    }
+
+    public MessageTokenizer(StopWordFilter stopWordFilter) {
+        stopWords = stopWordFilter;
+    }
+
+    /**
+     * receives each word found in a message, in order, duplicates included
+     */
+    public interface WordHandler {
+        void word(String word);
+    }
+
+    /**
+     * whether a message is a bot command, that is a ~ on its own followed by something else, checked without
+     * splitting the message
+     */
+    public static boolean isCommand(CharSequence message) {
+        int len = message.length();
+        if ((len < 3) || (message.charAt(0) != '~') || !isWhitespace(message.charAt(1))) {
+            return false;
+        }
+
+        for (int i = 2; i < len; i++) {
+            if (!isWhitespace(message.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the topic_counters partition a word belongs to
+     */
+    public static String prefixOf(String word) {
+        char c = word.charAt(0);
+        return (c < ASCII_PREFIXES.length) ? ASCII_PREFIXES[c] : String.valueOf(c);
+    }
+
+    /**
+     * passes each indexable word in the message to the handler
+     *
+     * @return the number of words passed to the handler
+     */
+    public int tokenize(CharSequence message, WordHandler handler) {
+        int len = message.length();
+        char[] buffer = buffers.get();
+        if (buffer.length < len) {
+            buffer = new char[len];
+            buffers.set(buffer);
+        }
+
+        int count = 0;
+        int wordLen = 0;
+        int hash = 0;
+        for (int i = 0; i <= len; i++) {
+            char c = (i < len) ? message.charAt(i) : ' ';
+            if (isDelimiter(c)) {
+                if (wordLen > 0) {
+                    String word = toWord(buffer, wordLen, hash);
+                    if (!stopWords.isStopWord(word)) {
+                        handler.word(word);
+                        count++;
+                    }
+                    wordLen = 0;
+                    hash = 0;
+                }
+            } else {
+                c = (c < 128) ? ((c >= 'A') && (c <= 'Z') ? (char) (c + ('a' - 'A')) : c) : Character.toLowerCase(c);
+                buffer[wordLen++] = c;
+                hash = (31 * hash) + c;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the same value for tokenizers that index the same words, so that an index built with one can be kept for
+     *         another, or 0 if that can't be told, as for a stop word filter of an unknown kind
+     */
+    public int getSignature() {
+        if (stopWords == StopWordFilter.NONE) {
+            return 1;
+        }
+        if (stopWords instanceof StopWords) {
+            int signature = 31 * stopWords.hashCode() + 2;
+            return (signature == 0) ? 2 : signature;
+        }
+        return 0;
+    }
+
+    /**
+     * whether a word that has already been split and lower cased is worth indexing
+     */
+    public boolean isIndexed(String word) {
+        return !word.isEmpty() && !stopWords.isStopWord(word);
+    }
+
+    /**
+     * returns the word in the buffer, reusing the String from the last time it was seen if it is still in the table.
+     * Lookups and stores race benignly, as a lost store only costs an allocation later.
+     */
+    private String toWord(char[] buffer, int len, int hash) {
+        if (len > MAX_CACHED_LENGTH) {
+            return new String(buffer, 0, len);
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+        String cached = words.get(slot);
+        if ((cached != null) && matches(cached, buffer, len)) {
+            return cached;
+        }
+
+        String word = new String(buffer, 0, len);
+        words.set(slot, word);
+        return word;
+    }
+
+    private static boolean matches(String word, char[] buffer, int len) {
+        if (word.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (word.charAt(i) != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return isWhitespace(c) || (c == '.') || (c == ',') || (c == '?') || (c == ':') || (c == '/');
+    }
+
+    /**
+     * the characters the \s regular expression class matches
+     */
+    private static boolean isWhitespace(char c) {
+        return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\u000B') || (c == '\f') || (c == '\r');
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.jibble.pircbot.IrcException;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * runs all the bots of one process: one or more connections per irc network, each joined to a shard of that network's
+ * channels so that no connection goes over the server's channel limit, all recording through the same store, ingest
+ * pipeline and command threads. Each connection reconnects by its own policy, with its attempts scheduled on threads
+ * shared by all of them, one per connection at most, so one network being down doesn't hold up the others, at start or
+ * later.
+ */
+public class NetworkSupervisor {
+
+    public static final int DEFAULT_CHANNELS_PER_CONNECTION = 20;
+    public static final long HEARTBEAT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Supplier<MessagePoster> posters;
+    private final List<IRCConnector> connectors = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor reconnects;
+    private MessageStore writer;
+    private IngestPipeline pipeline;
+    private CounterAggregator counterAggregator;
+    private TrendingTracker trendingTracker;
+    private DayArchive dayArchive;
+    private volatile GapLog gapLog;
+    private ScheduledFuture<?> heartbeat;
+    private CommandExecutor commands;
+
+    /**
+     * @param posterFactory
+     *            makes the poster for each connection, as each has its own flood limits
+     */
+    public NetworkSupervisor(Supplier<MessagePoster> posterFactory) {
+        posters = posterFactory;
+        reconnects = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r);
+            t.setName("Reconnect");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * adds the connections for a network, as few as keep each under the channel limit, with the channels dealt out
+     * evenly between them. The first connection uses the nickname as given, the others have a number appended.
+     *
+     * @param network
+     *            the name the network's channels are stored under, so that channels of the same name on different
+     *            networks are kept apart, or null to store them as they are named
+     */
+    public void addNetwork(String nickName, String server, String[] channels, String network, int channelsPerConnection, ReconnectPolicy policy) {
+        int perConnection = Math.max(1, channelsPerConnection);
+        int connections = Math.max(1, (channels.length + perConnection - 1) / perConnection);
+        List<List<String>> shards = new ArrayList<>(connections);
+        for (int c = 0; c < connections; c++) {
+            shards.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < channels.length; i++) {
+            shards.get(i % connections).add(channels[i]);
+        }
+
+        for (int c = 0; c < connections; c++) {
+            MessagePoster poster = posters.get();
+            poster.setName(MetricRegistry.name("poster", server, String.valueOf(c)));
+            List<String> shard = shards.get(c);
+            IRCConnector connector = new IRCConnector((c == 0) ? nickName : nickName + c, server, shard.toArray(new String[shard.size()]), poster);
+            connector.setNetwork(network);
+            connector.setReconnectPolicy(policy);
+            connector.setReconnectScheduler(reconnects);
+            connector.setWriter(writer);
+            connector.setIngestPipeline(pipeline);
+            connector.setTrendingTracker(trendingTracker);
+            connector.setDayArchive(dayArchive);
+            connector.setGapLog(gapLog);
+            connector.setCommandExecutor(commands);
+            connectors.add(connector);
+        }
+        reconnects.setCorePoolSize(connectors.size());
+    }
+
+    public List<IRCConnector> getConnectors() {
+        return Collections.unmodifiableList(connectors);
+    }
+
+    /**
+     * @return the names every connection's channels are stored under
+     */
+    public List<String> getStoredChannels() {
+        List<String> storedChannels = new ArrayList<>();
+        for (IRCConnector connector : connectors) {
+            for (String channel : connector.channels) {
+                storedChannels.add(connector.storedChannelName(channel));
+            }
+        }
+        return storedChannels;
+    }
+
+    public void setWriter(MessageStore messageStore) {
+        writer = messageStore;
+        for (IRCConnector connector : connectors) {
+            connector.setWriter(writer);
+        }
+    }
+
+    public void setIngestPipeline(IngestPipeline ingestPipeline) {
+        pipeline = ingestPipeline;
+        for (IRCConnector connector : connectors) {
+            connector.setIngestPipeline(pipeline);
+        }
+    }
+
+    public void setTrendingTracker(TrendingTracker tracker) {
+        trendingTracker = tracker;
+        for (IRCConnector connector : connectors) {
+            connector.setTrendingTracker(trendingTracker);
+        }
+    }
+
+    public void setDayArchive(DayArchive archive) {
+        dayArchive = archive;
+        for (IRCConnector connector : connectors) {
+            connector.setDayArchive(dayArchive);
+        }
+    }
+
+    public void setGapLog(GapLog gaps) {
+        gapLog = gaps;
+        for (IRCConnector connector : connectors) {
+            connector.setGapLog(gapLog);
+        }
+    }
+
+    public void setCommandExecutor(CommandExecutor commandExecutor) {
+        commands = commandExecutor;
+        for (IRCConnector connector : connectors) {
+            connector.setCommandExecutor(commands);
+        }
+    }
+
+    /**
+     * the aggregator is only held so it can be flushed on stop, connections don't use it directly
+     */
+    public void setCounterAggregator(CounterAggregator aggregator) {
+        counterAggregator = aggregator;
+    }
+
+    /**
+     * connects every connection at once, leaving any that fail to keep trying in the background, and saves which
+     * channels are being recorded every minute from then on, so that the time until the next start is a gap
+     */
+    public void startRecording() {
+        synchronized (this) {
+            if (heartbeat == null) {
+                heartbeat = reconnects.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        List<Thread> connecting = new ArrayList<>(connectors.size());
+        for (IRCConnector connector : connectors) {
+            Thread t = new Thread(() -> {
+                try {
+                    connector.startRecording();
+                } catch (IOException | IrcException | RuntimeException e) {
+                    IRCConnector.LOGGER.warn("Failed connecting to {}, will keep trying", connector.server, e);
+                    connector.reconnect();
+                }
+            });
+            t.setName("Connect-" + connector.server);
+            t.start();
+            connecting.add(t);
+        }
+
+        try {
+            for (Thread t : connecting) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * disconnects every connection, then stops what they shared, so that nothing is still arriving as the pipeline
+     * drains
+     */
+    public void stopRecording() {
+        heartbeat();
+        for (IRCConnector connector : connectors) {
+            connector.stopRecording();
+        }
+        reconnects.shutdownNow();
+        if (commands != null) {
+            commands.shutdown();
+        }
+        if (pipeline != null) {
+            pipeline.stopIngesting();
+        }
+        if (counterAggregator != null) {
+            counterAggregator.stopAggregating();
+        }
+        if (trendingTracker != null) {
+            trendingTracker.stopCheckpointing(writer);
+        }
+        if (dayArchive != null) {
+            dayArchive.stopSealing();
+        }
+    }
+
+    /**
+     * saves that the channels of every connection that is up are being recorded now
+     */
+    private void heartbeat() {
+        GapLog gaps = gapLog;
+        if (gaps == null) {
+            return;
+        }
+
+        List<String> recording = new ArrayList<>();
+        for (IRCConnector connector : connectors) {
+            if (connector.getState() == IRCConnector.State.CONNECTED) {
+                for (String channel : connector.channels) {
+                    recording.add(connector.storedChannelName(channel));
+                }
+            }
+        }
+        gaps.heartbeat(recording, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+/**
+ * what the ingest pipeline does with a message when its queue is full
+ */
+public enum OverflowPolicy {
+    /** wait a bounded amount of time for room, then drop the message */
+    BLOCK,
+    /** drop the message being submitted */
+    DROP_NEWEST,
+    /** evict the oldest queued message to make room, other than those read from the spool, or if all are, drop the message being submitted */
+    DROP_OLDEST;
+}
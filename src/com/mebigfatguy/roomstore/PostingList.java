@@ -0,0 +1,438 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * a list of messages, such as those that mention a word, as (timestamp, log offset) pairs in time order, the offset
+ * breaking ties, so that history loaded after newer messages still reads back in the order it was said. Pairs are kept
+ * compressed in blocks of up to BLOCK_SIZE: the first and last pair of each block are kept as they are, the rest as
+ * varint encoded deltas from the pair before, the time delta as is, as it never goes down, and the offset delta zigzag
+ * encoded, as it can. Messages nearly always arrive in time order and are appended to the last block; older ones are
+ * inserted into the block they fall in, which is split in two once it overflows. Lookups binary search the block
+ * headers and decode only the block they land in, so intersections skip whole blocks they can't match in.
+ */
+class PostingList {
+
+    static final int BLOCK_SIZE = 128;
+
+    private long[] firstTime = new long[1];
+    private long[] firstOffset = new long[1];
+    private long[] lastTime = new long[1];
+    private long[] lastOffset = new long[1];
+    private int[] counts = new int[1];
+    private byte[][] data = new byte[1][];
+    private int[] dataSizes = new int[1];
+    private int blocks;
+    private int size;
+
+    /**
+     * adds a message, in time order
+     *
+     * @return false if it was already in the list
+     */
+    boolean add(long time, long offset) {
+        int last = blocks - 1;
+        int order = (blocks == 0) ? 1 : compare(time, offset, lastTime[last], lastOffset[last]);
+        if (order == 0) {
+            return false;
+        }
+
+        if (order > 0) {
+            if ((blocks == 0) || (counts[last] == BLOCK_SIZE)) {
+                insertBlock(blocks);
+                last = blocks - 1;
+                firstTime[last] = time;
+                firstOffset[last] = offset;
+                counts[last] = 1;
+                data[last] = new byte[16];
+                dataSizes[last] = 0;
+            } else {
+                writeDelta(last, time - lastTime[last], offset - lastOffset[last]);
+                counts[last]++;
+            }
+            lastTime[last] = time;
+            lastOffset[last] = offset;
+            size++;
+            return true;
+        }
+
+        int block = Math.max(0, findBlock(time, offset));
+        long[] times = new long[BLOCK_SIZE + 1];
+        long[] offsets = new long[BLOCK_SIZE + 1];
+        int count = decode(block, times, offsets);
+        int index = search(times, offsets, 0, count, time, offset);
+        if (index >= 0) {
+            return false;
+        }
+        index = -(index + 1);
+        System.arraycopy(times, index, times, index + 1, count - index);
+        System.arraycopy(offsets, index, offsets, index + 1, count - index);
+        times[index] = time;
+        offsets[index] = offset;
+        count++;
+
+        if (count > BLOCK_SIZE) {
+            int half = count / 2;
+            insertBlock(block + 1);
+            encode(block, times, offsets, 0, half);
+            encode(block + 1, times, offsets, half, count);
+        } else {
+            encode(block, times, offsets, 0, count);
+        }
+        size++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * writes the blocks as they are, headers and encoded bytes, so that reading them back decodes nothing
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(blocks);
+        for (int block = 0; block < blocks; block++) {
+            out.writeLong(firstTime[block]);
+            out.writeLong(firstOffset[block]);
+            out.writeLong(lastTime[block]);
+            out.writeLong(lastOffset[block]);
+            out.writeInt(counts[block]);
+            out.writeInt(dataSizes[block]);
+            out.write(data[block], 0, dataSizes[block]);
+        }
+    }
+
+    static PostingList readFrom(DataInput in) throws IOException {
+        PostingList list = new PostingList();
+        int numBlocks = in.readInt();
+        if (numBlocks < 0) {
+            throw new IOException("Bad posting list block count " + numBlocks);
+        }
+        for (int block = 0; block < numBlocks; block++) {
+            list.insertBlock(block);
+            list.firstTime[block] = in.readLong();
+            list.firstOffset[block] = in.readLong();
+            list.lastTime[block] = in.readLong();
+            list.lastOffset[block] = in.readLong();
+            list.counts[block] = in.readInt();
+            list.dataSizes[block] = in.readInt();
+            if ((list.counts[block] <= 0) || (list.counts[block] > BLOCK_SIZE) || (list.dataSizes[block] < 0)
+                    || (list.dataSizes[block] > (list.counts[block] * 20))) {
+                throw new IOException("Bad posting list block of " + list.counts[block] + " postings in " + list.dataSizes[block] + " bytes");
+            }
+            list.data[block] = new byte[Math.max(16, list.dataSizes[block])];
+            in.readFully(list.data[block], 0, list.dataSizes[block]);
+            list.size += list.counts[block];
+        }
+        return list;
+    }
+
+    /**
+     * the number of bytes the postings take, not counting block headers
+     */
+    int getEncodedSize() {
+        int encoded = 0;
+        for (int block = 0; block < blocks; block++) {
+            encoded += dataSizes[block];
+        }
+        return encoded;
+    }
+
+    boolean contains(long time, long offset) {
+        int block = findBlock(time, offset);
+        if ((block < 0) || (compare(time, offset, lastTime[block], lastOffset[block]) > 0)) {
+            return false;
+        }
+
+        long[] times = new long[BLOCK_SIZE];
+        long[] offsets = new long[BLOCK_SIZE];
+        int count = decode(block, times, offsets);
+        return search(times, offsets, 0, count, time, offset) >= 0;
+    }
+
+    /**
+     * walks the list from its oldest message up
+     */
+    Cursor ascending() {
+        return new Cursor(true);
+    }
+
+    /**
+     * walks the list from its newest message down
+     */
+    Cursor descending() {
+        return new Cursor(false);
+    }
+
+    /**
+     * the last block whose first pair is at or before the pair, or -1 if there is none
+     */
+    private int findBlock(long time, long offset) {
+        int low = 0;
+        int high = blocks - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int order = compare(firstTime[mid], firstOffset[mid], time, offset);
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private void insertBlock(int block) {
+        if (blocks == counts.length) {
+            int capacity = blocks + Math.max(1, blocks >> 1);
+            firstTime = Arrays.copyOf(firstTime, capacity);
+            firstOffset = Arrays.copyOf(firstOffset, capacity);
+            lastTime = Arrays.copyOf(lastTime, capacity);
+            lastOffset = Arrays.copyOf(lastOffset, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            data = Arrays.copyOf(data, capacity);
+            dataSizes = Arrays.copyOf(dataSizes, capacity);
+        }
+        int moved = blocks - block;
+        System.arraycopy(firstTime, block, firstTime, block + 1, moved);
+        System.arraycopy(firstOffset, block, firstOffset, block + 1, moved);
+        System.arraycopy(lastTime, block, lastTime, block + 1, moved);
+        System.arraycopy(lastOffset, block, lastOffset, block + 1, moved);
+        System.arraycopy(counts, block, counts, block + 1, moved);
+        System.arraycopy(data, block, data, block + 1, moved);
+        System.arraycopy(dataSizes, block, dataSizes, block + 1, moved);
+        blocks++;
+    }
+
+    /**
+     * replaces a block's contents with a run of sorted pairs
+     */
+    private void encode(int block, long[] times, long[] offsets, int from, int to) {
+        firstTime[block] = times[from];
+        firstOffset[block] = offsets[from];
+        lastTime[block] = times[to - 1];
+        lastOffset[block] = offsets[to - 1];
+        counts[block] = to - from;
+        data[block] = new byte[Math.max(16, (to - from) * 4)];
+        dataSizes[block] = 0;
+        for (int i = from + 1; i < to; i++) {
+            writeDelta(block, times[i] - times[i - 1], offsets[i] - offsets[i - 1]);
+        }
+    }
+
+    private int decode(int block, long[] times, long[] offsets) {
+        int count = counts[block];
+        byte[] bytes = data[block];
+        long time = firstTime[block];
+        long offset = firstOffset[block];
+        times[0] = time;
+        offsets[0] = offset;
+        int pos = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            time += delta;
+
+            delta = 0;
+            shift = 0;
+            do {
+                b = bytes[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += (delta >>> 1) ^ -(delta & 1);
+
+            times[i] = time;
+            offsets[i] = offset;
+        }
+        return count;
+    }
+
+    private void writeDelta(int block, long timeDelta, long offsetDelta) {
+        if ((dataSizes[block] + 20) > data[block].length) {
+            data[block] = Arrays.copyOf(data[block], Math.max(dataSizes[block] + 20, data[block].length + (data[block].length >> 1)));
+        }
+        writeVarint(block, timeDelta);
+        writeVarint(block, (offsetDelta << 1) ^ (offsetDelta >> 63));
+    }
+
+    private void writeVarint(int block, long value) {
+        byte[] bytes = data[block];
+        int pos = dataSizes[block];
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            bytes[pos++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        bytes[pos++] = (byte) remaining;
+        dataSizes[block] = pos;
+    }
+
+    static int compare(long time1, long offset1, long time2, long offset2) {
+        int order = Long.compare(time1, time2);
+        return (order != 0) ? order : Long.compare(offset1, offset2);
+    }
+
+    /**
+     * binary searches a sorted run of pairs, returning the index of the pair, or -(insertion point) - 1 as
+     * Arrays.binarySearch does
+     */
+    private static int search(long[] times, long[] offsets, int from, int to, long time, long offset) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int order = compare(times[mid], offsets[mid], time, offset);
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * iterates the list one way, decoding a block at a time. Only valid while the list isn't being added to.
+     */
+    class Cursor {
+        private final boolean ascending;
+        private final long[] times = new long[BLOCK_SIZE];
+        private final long[] offsets = new long[BLOCK_SIZE];
+        private int block;
+        private int count;
+        private int index;
+
+        Cursor(boolean forwards) {
+            ascending = forwards;
+            if (size > 0) {
+                load(ascending ? 0 : blocks - 1);
+                index = ascending ? 0 : count - 1;
+            } else {
+                block = -1;
+            }
+        }
+
+        boolean hasNext() {
+            return (block >= 0) && (index >= 0) && (index < count);
+        }
+
+        /**
+         * the time of the message the cursor is on, without moving
+         */
+        long peekTime() {
+            return times[index];
+        }
+
+        /**
+         * the offset of the message the cursor is on, without moving
+         */
+        long peekOffset() {
+            return offsets[index];
+        }
+
+        /**
+         * @return the offset of the message the cursor was on
+         */
+        long next() {
+            long offset = offsets[index];
+            if (ascending) {
+                if ((++index == count) && ((block + 1) < blocks)) {
+                    load(block + 1);
+                    index = 0;
+                }
+            } else if ((--index < 0) && (block > 0)) {
+                load(block - 1);
+                index = count - 1;
+            }
+            return offset;
+        }
+
+        /**
+         * moves to the first message past the pair in the cursor's direction
+         */
+        void skipPast(long time, long offset) {
+            skipTo(time, ascending ? offset + 1 : offset - 1);
+        }
+
+        /**
+         * moves forward to the first message at or past the pair in the cursor's direction, jumping over whole blocks
+         * using their headers
+         */
+        void skipTo(long time, long offset) {
+            if (!hasNext()) {
+                return;
+            }
+            int order = compare(times[index], offsets[index], time, offset);
+            if (ascending ? (order >= 0) : (order <= 0)) {
+                return;
+            }
+
+            if (ascending) {
+                if (compare(time, offset, lastTime[block], lastOffset[block]) > 0) {
+                    int to = findBlock(time, offset);
+                    if ((to >= 0) && (compare(time, offset, lastTime[to], lastOffset[to]) > 0)) {
+                        to++;
+                    }
+                    if (to >= blocks) {
+                        index = count;
+                        return;
+                    }
+                    load(to);
+                    index = 0;
+                }
+                int found = search(times, offsets, index, count, time, offset);
+                index = (found >= 0) ? found : -(found + 1);
+            } else {
+                if (compare(time, offset, firstTime[block], firstOffset[block]) < 0) {
+                    int to = findBlock(time, offset);
+                    if (to < 0) {
+                        index = -1;
+                        return;
+                    }
+                    load(to);
+                    index = count - 1;
+                }
+                int found = search(times, offsets, 0, index + 1, time, offset);
+                index = (found >= 0) ? found : -(found + 1) - 1;
+            }
+        }
+
+        private void load(int toBlock) {
+            block = toBlock;
+            count = decode(block, times, offsets);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * how long a connection waits before each attempt to reconnect: an initial delay, growing by a multiplier after every
+ * failed attempt, up to a limit, less a random part of it, so that connections dropped together, as in a netsplit,
+ * don't all come back at the same moment and keep hitting the server in step. Policies hold no state, so one can be
+ * shared by many connections.
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 2000;
+    public static final double DEFAULT_MULTIPLIER = 1.5;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private final long initialDelay;
+    private final double multiplier;
+    private final long maxDelay;
+    private final double jitter;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MULTIPLIER, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_JITTER);
+    }
+
+    public ReconnectPolicy(long initialDelayMillis, double delayMultiplier, long maxDelayMillis) {
+        this(initialDelayMillis, delayMultiplier, maxDelayMillis, DEFAULT_JITTER);
+    }
+
+    /**
+     * @param randomFraction
+     *            how much of each delay, from 0 to 1, may randomly be taken off it
+     */
+    public ReconnectPolicy(long initialDelayMillis, double delayMultiplier, long maxDelayMillis, double randomFraction) {
+        initialDelay = Math.max(0, initialDelayMillis);
+        multiplier = Math.max(1.0, delayMultiplier);
+        maxDelay = Math.max(initialDelay, maxDelayMillis);
+        jitter = Math.max(0.0, Math.min(1.0, randomFraction));
+    }
+
+    /**
+     * @param attempt
+     *            the number of attempts that have already failed
+     * @return the milliseconds to wait before the next attempt
+     */
+    public long getDelay(int attempt) {
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        return (long) (delay * (1.0 - (jitter * ThreadLocalRandom.current().nextDouble())));
+    }
+}
@@ -18,6 +18,13 @@
  */
 package com.mebigfatguy.roomstore;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -34,8 +41,55 @@ public class RoomStore {
     private static final String NICK_NAME = "nick";
     private static final String IRCSERVER = "irc_server";
     private static final String CHANNELS = "channels";
+    private static final String NETWORKS = "networks";
+    private static final String IMPORT_LOGS = "import_logs";
+    private static final String IMPORT_FORMAT = "import_format";
+    private static final String IMPORT_NETWORK = "import_network";
+    private static final String IMPORT_THREADS = "import_threads";
+    private static final String IMPORT_IN_FLIGHT = "import_in_flight";
+    private static final String EXPORT_CHANNEL = "export_channel";
+    private static final String EXPORT_FROM = "export_from";
+    private static final String EXPORT_TO = "export_to";
+    private static final String EXPORT_FILE = "export_file";
+    private static final String ARCHIVE_DIR = "archive_dir";
+    private static final String ARCHIVE_DAYS = "archive_days";
+    private static final String ARCHIVE_GRACE_MILLIS = "archive_grace_millis";
+    private static final String DEFAULT_ARCHIVE_DIR = "roomstore-archive";
+    private static final String CHANNELS_PER_CONNECTION = "channels_per_connection";
+    private static final String RECONNECT_DELAY = "reconnect_delay";
+    private static final String RECONNECT_MAX_DELAY = "reconnect_max_delay";
+    private static final String RECONNECT_JITTER = "reconnect_jitter";
     private static final String ENDPOINTS = "endpoints";
     private static final String RF = "rc";
+    private static final String INGEST_QUEUE_SIZE = "ingest_queue_size";
+    private static final String INGEST_WORKERS = "ingest_workers";
+    private static final String INGEST_OVERFLOW = "ingest_overflow";
+    private static final String SHED_LAG_MILLIS = "shed_lag_millis";
+    private static final String SHED_LATENCY_MILLIS = "shed_latency_millis";
+    private static final String SHED_DEDUPE_WINDOW = "shed_dedupe_window";
+    private static final String SHED_MAX_DEFERRED = "shed_max_deferred";
+    private static final String SPOOL_DIR = "spool_dir";
+    private static final String SPOOL_SEGMENT_SIZE = "spool_segment_size";
+    private static final String COUNTER_FLUSH_MILLIS = "counter_flush_millis";
+    private static final String COUNTER_FLUSH_THRESHOLD = "counter_flush_threshold";
+    private static final String BACKFILL_TOPICS = "backfill_topics";
+    private static final String MIGRATE_SCHEMA = "migrate_schema";
+    private static final String TRENDING_WORDS = "trending_words";
+    private static final String TRENDING_CHECKPOINT_MILLIS = "trending_checkpoint_millis";
+    private static final String VOCABULARY_WORDS = "vocabulary_words";
+    private static final String SEEN_CACHE_SIZE = "seen_cache_size";
+    private static final String SEEN_CACHE_TTL = "seen_cache_ttl";
+    private static final String POST_RATE = "post_rate";
+    private static final String POST_BURST = "post_burst";
+    private static final String POST_BACKLOG = "post_backlog";
+    private static final String COMMAND_THREADS = "command_threads";
+    private static final String COMMAND_USER_LIMIT = "command_user_limit";
+    private static final String COMMAND_TIMEOUT = "command_timeout";
+    private static final String STOP_WORDS = "stop_words";
+    private static final String STORE = "store";
+    private static final String STORE_DIR = "store_dir";
+    private static final String METRICS_CSV = "metrics_csv";
+    private static final String METRICS_PERIOD = "metrics_period";
 
     public static void main(String[] args) {
         Options options = createOptions();
@@ -60,21 +114,165 @@ public class RoomStore {
                 replicationFactor = 1;
             }
 
-            final IRCConnector connector = new IRCConnector(nickname, server, channels);
+            String metricsCsv = cmdLine.getOptionValue(METRICS_CSV);
+            Instrumentation.startReporting((metricsCsv == null) ? null : new File(metricsCsv),
+                    parseLong(cmdLine.getOptionValue(METRICS_PERIOD), Instrumentation.DEFAULT_REPORT_SECONDS));
+
+            MessageTokenizer tokenizer = new MessageTokenizer();
+            String stopWords = cmdLine.getOptionValue(STOP_WORDS);
+            if ("none".equalsIgnoreCase(stopWords)) {
+                tokenizer = new MessageTokenizer(StopWordFilter.NONE);
+            } else if (stopWords != null) {
+                tokenizer = new MessageTokenizer(StopWords.load(new File(stopWords)));
+            }
+
+            boolean recording = !cmdLine.hasOption(IMPORT_LOGS) && !cmdLine.hasOption(EXPORT_CHANNEL);
+            final NetworkSupervisor supervisor;
+            final IngestPipeline pipeline;
+            if (recording) {
+                if ((nickname == null) || (server == null) || (channels == null)) {
+                    throw new ParseException("-" + NICK_NAME + ", -" + IRCSERVER + " and -" + CHANNELS + " are needed to record");
+                }
+
+                // connect to irc while the store is opened, with messages waiting in the ingest queue or spool until it is
+                supervisor = createSupervisor(cmdLine, nickname, server, channels);
+                pipeline = createPipeline(cmdLine);
+                supervisor.setIngestPipeline(pipeline);
+                Thread connecting = new Thread(supervisor::startRecording);
+                connecting.setName("IrcConnect");
+                connecting.start();
+            } else {
+                supervisor = null;
+                pipeline = null;
+            }
+
+            final MessageStore store;
+            Session session = null;
+            CassandraWriter writer = null;
+            CounterAggregator counterAggregator = null;
+            VocabularyFilter vocabulary = null;
+            try {
+                if ("local".equalsIgnoreCase(cmdLine.getOptionValue(STORE))) {
+                    store = new LocalStore(new File(cmdLine.getOptionValue(STORE_DIR, "roomstore-data")), tokenizer);
+                } else {
+                    Cluster cluster = new Cluster.Builder().addContactPoints(endPoints).build();
+                    session = cluster.connect();
+
+                    writer = new CassandraWriter(session, replicationFactor);
+                    writer.setTokenizer(tokenizer);
+
+                    counterAggregator = new CounterAggregator(writer,
+                            parseLong(cmdLine.getOptionValue(COUNTER_FLUSH_MILLIS), CounterAggregator.DEFAULT_FLUSH_MILLIS),
+                            parseInt(cmdLine.getOptionValue(COUNTER_FLUSH_THRESHOLD), CounterAggregator.DEFAULT_FLUSH_THRESHOLD));
+                    counterAggregator.startAggregating();
+                    writer.setCounterAggregator(counterAggregator);
+
+                    writer.setLastSeenCache(new LastSeenCache(parseInt(cmdLine.getOptionValue(SEEN_CACHE_SIZE), LastSeenCache.DEFAULT_SIZE),
+                            parseLong(cmdLine.getOptionValue(SEEN_CACHE_TTL), LastSeenCache.DEFAULT_TTL_MINUTES)));
+
+                    int vocabularyWords = parseInt(cmdLine.getOptionValue(VOCABULARY_WORDS), VocabularyFilter.DEFAULT_WORDS_PER_CHANNEL);
+                    if (vocabularyWords > 0) {
+                        vocabulary = new VocabularyFilter(vocabularyWords, VocabularyFilter.DEFAULT_FALSE_POSITIVE_RATE);
+                        writer.setVocabularyFilter(vocabulary);
+                        if (!vocabulary.load(writer) && recording) {
+                            scanVocabulary(writer, vocabulary);
+                        }
+                    }
+                    store = writer;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (supervisor != null) {
+                    supervisor.stopRecording();
+                }
+                throw e;
+            }
+
+            if (!recording) {
+                if (cmdLine.hasOption(IMPORT_LOGS)) {
+                    importLogs(cmdLine, store);
+                } else {
+                    exportDays(cmdLine, store);
+                }
+                if (counterAggregator != null) {
+                    counterAggregator.stopAggregating();
+                }
+                if (vocabulary != null) {
+                    vocabulary.save(store);
+                }
+                store.close();
+                if (session != null) {
+                    session.getCluster().close();
+                }
+                Instrumentation.stopReporting();
+                return;
+            }
+
+            supervisor.setCounterAggregator(counterAggregator);
+            supervisor.setWriter(store);
+            supervisor.setGapLog(new GapLog(store));
 
-            Cluster cluster = new Cluster.Builder().addContactPoints(endPoints).build();
-            final Session session = cluster.connect();
+            TrendingTracker trendingTracker = new TrendingTracker(
+                    parseInt(cmdLine.getOptionValue(TRENDING_WORDS), TrendingTracker.DEFAULT_WORDS_PER_SLOT), TrendingTracker.DEFAULT_SLOTS,
+                    TrendingTracker.DEFAULT_SLOT_MILLIS);
+            trendingTracker.startCheckpointing(store,
+                    parseLong(cmdLine.getOptionValue(TRENDING_CHECKPOINT_MILLIS), TrendingTracker.DEFAULT_CHECKPOINT_MILLIS));
+            store.setTrendingTracker(trendingTracker);
+            supervisor.setTrendingTracker(trendingTracker);
+
+            String archiveDir = cmdLine.getOptionValue(ARCHIVE_DIR);
+            if (archiveDir != null) {
+                DayArchive archive = createArchive(cmdLine, store, archiveDir);
+                supervisor.setDayArchive(archive);
+                archive.startSealing(supervisor.getStoredChannels(), parseInt(cmdLine.getOptionValue(ARCHIVE_DAYS), DayArchive.DEFAULT_SEAL_DAYS));
+            }
 
-            CassandraWriter writer = new CassandraWriter(session, replicationFactor);
-            connector.setWriter(writer);
+            pipeline.setSink(store);
+            pipeline.startIngesting();
+            IRCConnector.LOGGER.info("Storage is ready, recording");
 
-            connector.startRecording();
+            if ((session != null) && cmdLine.hasOption(BACKFILL_TOPICS)) {
+                TopicBackfill topicBackfill = new TopicBackfill(session, cmdLine.getOptionValue(BACKFILL_TOPICS));
+                topicBackfill.setVocabularyFilter(vocabulary);
+                Thread backfill = new Thread(topicBackfill);
+                backfill.setName("TopicBackfill");
+                backfill.setDaemon(true);
+                backfill.start();
+            }
+
+            if ((writer != null) && cmdLine.hasOption(MIGRATE_SCHEMA)) {
+                Thread migration = new Thread(new SchemaMigration(writer, cmdLine.getOptionValue(MIGRATE_SCHEMA)));
+                migration.setName("SchemaMigration");
+                migration.setDaemon(true);
+                migration.start();
+            } else if ((writer != null) && !writer.isMigrated()) {
+                IRCConnector.LOGGER.info("Older tables are still being read, run with -{} to copy them into the current schema", MIGRATE_SCHEMA);
+            } else if ((writer != null) && !writer.hasTimelines()) {
+                IRCConnector.LOGGER.warn("This install was migrated before user timelines existed, so ~ user misses older messages until they are "
+                        + "filled in, which is starting in the background");
+                Thread timelines = new Thread(new SchemaMigration(writer, "timelines"));
+                timelines.setName("TimelineBackfill");
+                timelines.setDaemon(true);
+                timelines.start();
+            }
 
+            final Session openSession = session;
+            final VocabularyFilter vocabularyFilter = vocabulary;
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    connector.stopRecording();
-                    session.close();
+                    supervisor.stopRecording();
+                    if (vocabularyFilter != null) {
+                        vocabularyFilter.save(store);
+                    }
+                    try {
+                        store.close();
+                    } catch (IOException ioe) {
+                        IRCConnector.LOGGER.error("Failed closing message store", ioe);
+                    }
+                    if (openSession != null) {
+                        openSession.close();
+                    }
+                    Instrumentation.stopReporting();
                 }
             }));
 
@@ -88,22 +286,228 @@ public class RoomStore {
         }
     }
 
+    private static NetworkSupervisor createSupervisor(CommandLine cmdLine, String nickname, String server, String[] channels) throws ParseException {
+        final double postRate = parseDouble(cmdLine.getOptionValue(POST_RATE), MessagePoster.DEFAULT_LINES_PER_SECOND);
+        if (!(postRate > 0.0) || Double.isInfinite(postRate)) {
+            throw new ParseException("-" + POST_RATE + " must be more than 0");
+        }
+        final int postBurst = parseInt(cmdLine.getOptionValue(POST_BURST), MessagePoster.DEFAULT_BURST);
+        final int postBacklog = parseInt(cmdLine.getOptionValue(POST_BACKLOG), MessagePoster.DEFAULT_MAX_BACKLOG);
+        final NetworkSupervisor supervisor = new NetworkSupervisor(() -> new MessagePoster(postRate, postBurst, postBacklog));
+
+        ReconnectPolicy reconnectPolicy = new ReconnectPolicy(
+                parseLong(cmdLine.getOptionValue(RECONNECT_DELAY), ReconnectPolicy.DEFAULT_INITIAL_DELAY_MILLIS), ReconnectPolicy.DEFAULT_MULTIPLIER,
+                parseLong(cmdLine.getOptionValue(RECONNECT_MAX_DELAY), ReconnectPolicy.DEFAULT_MAX_DELAY_MILLIS),
+                parseDouble(cmdLine.getOptionValue(RECONNECT_JITTER), ReconnectPolicy.DEFAULT_JITTER));
+        int channelsPerConnection = parseInt(cmdLine.getOptionValue(CHANNELS_PER_CONNECTION), NetworkSupervisor.DEFAULT_CHANNELS_PER_CONNECTION);
+        supervisor.addNetwork(nickname, server, channels, null, channelsPerConnection, reconnectPolicy);
+        String[] networks = cmdLine.getOptionValues(NETWORKS);
+        if (networks != null) {
+            for (String network : networks) {
+                int equals = network.indexOf('=');
+                if (equals <= 0) {
+                    throw new ParseException("networks must be given as server=#channel,#channel: " + network);
+                }
+                String networkServer = network.substring(0, equals);
+                supervisor.addNetwork(nickname, networkServer, network.substring(equals + 1).split(","), networkServer, channelsPerConnection,
+                        reconnectPolicy);
+            }
+        }
+
+        String commandThreads = cmdLine.getOptionValue(COMMAND_THREADS);
+        supervisor.setCommandExecutor(new CommandExecutor("virtual".equalsIgnoreCase(commandThreads) ? 0 : parseInt(commandThreads, CommandExecutor.DEFAULT_THREADS),
+                parseInt(cmdLine.getOptionValue(COMMAND_USER_LIMIT), CommandExecutor.DEFAULT_MAX_PER_USER),
+                parseLong(cmdLine.getOptionValue(COMMAND_TIMEOUT), CommandExecutor.DEFAULT_TIMEOUT_SECONDS)));
+        return supervisor;
+    }
+
+    private static IngestPipeline createPipeline(CommandLine cmdLine) throws IOException {
+        OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        String overflow = cmdLine.getOptionValue(INGEST_OVERFLOW);
+        if (overflow != null) {
+            overflowPolicy = OverflowPolicy.valueOf(overflow.toUpperCase());
+        }
+        IngestPipeline pipeline = new IngestPipeline(null, parseInt(cmdLine.getOptionValue(INGEST_QUEUE_SIZE), IngestPipeline.DEFAULT_QUEUE_SIZE),
+                parseInt(cmdLine.getOptionValue(INGEST_WORKERS), IngestPipeline.DEFAULT_WORKERS), overflowPolicy);
+        String spoolDir = cmdLine.getOptionValue(SPOOL_DIR);
+        if (spoolDir != null) {
+            pipeline.setSpool(new WriteAheadSpool(new File(spoolDir),
+                    parseInt(cmdLine.getOptionValue(SPOOL_SEGMENT_SIZE), WriteAheadSpool.DEFAULT_SEGMENT_SIZE)));
+        }
+        long shedLag = parseLong(cmdLine.getOptionValue(SHED_LAG_MILLIS), LoadShedder.DEFAULT_MAX_LAG_MILLIS);
+        if (shedLag > 0) {
+            pipeline.setLoadShedder(new LoadShedder(shedLag,
+                    parseLong(cmdLine.getOptionValue(SHED_LATENCY_MILLIS), LoadShedder.DEFAULT_MAX_LATENCY_MILLIS),
+                    parseInt(cmdLine.getOptionValue(SHED_DEDUPE_WINDOW), LoadShedder.DEFAULT_DEDUPE_WINDOW),
+                    parseInt(cmdLine.getOptionValue(SHED_MAX_DEFERRED), LoadShedder.DEFAULT_MAX_DEFERRED)));
+        }
+        return pipeline;
+    }
+
+    private static void importLogs(CommandLine cmdLine, MessageStore store) throws IOException, InterruptedException {
+        LogImporter importer = new LogImporter(store, parseInt(cmdLine.getOptionValue(IMPORT_THREADS), Runtime.getRuntime().availableProcessors()),
+                parseInt(cmdLine.getOptionValue(IMPORT_IN_FLIGHT), LogImporter.DEFAULT_MAX_IN_FLIGHT));
+        String format = cmdLine.getOptionValue(IMPORT_FORMAT);
+        if ((format != null) && !"auto".equalsIgnoreCase(format)) {
+            importer.setFormat(LogFormat.valueOf(format.toUpperCase()));
+        }
+        importer.setNetwork(cmdLine.getOptionValue(IMPORT_NETWORK));
+
+        List<File> logs = new ArrayList<>();
+        for (String log : cmdLine.getOptionValues(IMPORT_LOGS)) {
+            logs.add(new File(log));
+        }
+        importer.importLogs(logs);
+    }
+
+    /**
+     * fills the vocabulary filters from the store in the background, recording in the meantime, with every word taken to
+     * have been said until they are complete
+     */
+    private static void scanVocabulary(final CassandraWriter writer, final VocabularyFilter vocabulary) {
+        Thread scan = new Thread(() -> {
+            try {
+                writer.scanVocabulary(vocabulary);
+                vocabulary.markComplete();
+            } catch (RuntimeException e) {
+                IRCConnector.LOGGER.error("Failed scanning indexed words, topic queries won't be filtered", e);
+            }
+        });
+        scan.setName("VocabularyScan");
+        scan.setDaemon(true);
+        scan.start();
+    }
+
+    private static void exportDays(CommandLine cmdLine, MessageStore store) throws IOException, ParseException {
+        String channel = cmdLine.getOptionValue(EXPORT_CHANNEL);
+        String from = cmdLine.getOptionValue(EXPORT_FROM);
+        String exportFile = cmdLine.getOptionValue(EXPORT_FILE);
+        if ((channel == null) || (from == null) || (exportFile == null)) {
+            throw new ParseException("-" + EXPORT_CHANNEL + ", -" + EXPORT_FROM + " and -" + EXPORT_FILE + " are needed to export");
+        }
+
+        DayArchive archive = createArchive(cmdLine, store, cmdLine.getOptionValue(ARCHIVE_DIR, DEFAULT_ARCHIVE_DIR));
+        long fromDay = TimeKeeper.parseDay(from).getTime();
+        long toDay = TimeKeeper.parseDay(cmdLine.getOptionValue(EXPORT_TO, from)).getTime();
+        try (FileChannel out = FileChannel.open(new File(exportFile).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int days = archive.export(channel, fromDay, toDay, out);
+            IRCConnector.LOGGER.info("Exported {} days of {} to {}", Integer.valueOf(days), channel, exportFile);
+        }
+    }
+
+    private static DayArchive createArchive(CommandLine cmdLine, MessageStore store, String archiveDir) throws IOException {
+        return new DayArchive(new File(archiveDir), store, parseLong(cmdLine.getOptionValue(ARCHIVE_GRACE_MILLIS), DayArchive.DEFAULT_GRACE_MILLIS));
+    }
+
     private static Options createOptions() {
         Options options = new Options();
 
         Option option = new Option(NICK_NAME, true, "nickname to use to access irc channels");
-        option.setRequired(true);
+        option.setRequired(false);
         options.addOption(option);
 
         option = new Option(IRCSERVER, true, "irc server url");
-        option.setRequired(true);
+        option.setRequired(false);
         options.addOption(option);
 
         option = new Option(CHANNELS, true, "space separated list of channels to connect to");
-        option.setRequired(true);
+        option.setRequired(false);
+        option.setArgs(100);
+        options.addOption(option);
+
+        option = new Option(NETWORKS, true, "space separated list of further networks to record, as server=#channel,#channel");
+        option.setRequired(false);
+        option.setArgs(100);
+        options.addOption(option);
+
+        option = new Option(CHANNELS_PER_CONNECTION, true,
+                "channels joined by each bot connection, more channels make more connections[default=" + NetworkSupervisor.DEFAULT_CHANNELS_PER_CONNECTION + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(RECONNECT_DELAY, true,
+                "milliseconds a dropped connection waits before reconnecting, growing with each failure[default=" + ReconnectPolicy.DEFAULT_INITIAL_DELAY_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(RECONNECT_MAX_DELAY, true,
+                "most milliseconds a dropped connection waits between reconnects[default=" + ReconnectPolicy.DEFAULT_MAX_DELAY_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(RECONNECT_JITTER, true,
+                "fraction of each reconnect wait, from 0 to 1, that may randomly be taken off it[default=" + ReconnectPolicy.DEFAULT_JITTER + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(IMPORT_LOGS, true, "space separated list of irc log files or directories to load into the store, instead of recording");
+        option.setRequired(false);
         option.setArgs(100);
         options.addOption(option);
 
+        option = new Option(IMPORT_FORMAT, true, "format of the imported logs, auto, irssi, weechat or znc[default=auto]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(IMPORT_NETWORK, true, "network the imported logs' channels are stored under, as given to -" + NETWORKS);
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(IMPORT_THREADS, true, "log files imported at once[default=number of processors]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(IMPORT_IN_FLIGHT, true, "writes of imported messages that can be outstanding at once[default=" + LogImporter.DEFAULT_MAX_IN_FLIGHT + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(EXPORT_CHANNEL, true, "channel, as stored, whose days are exported as day archives, instead of recording");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(EXPORT_FROM, true, "first day exported, as MM/dd/yyyy");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(EXPORT_TO, true, "last day exported, as MM/dd/yyyy[default=the first day]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(EXPORT_FILE, true, "file the exported day archives are written to, back to back");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(ARCHIVE_DIR, true, "directory that days are sealed into once they are over, for ~ date and exports[default=none, "
+                + DEFAULT_ARCHIVE_DIR + " when exporting]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(ARCHIVE_DAYS, true, "days back that are sealed in the background while recording[default=" + DayArchive.DEFAULT_SEAL_DAYS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(ARCHIVE_GRACE_MILLIS, true,
+                "milliseconds after midnight before the day that ended is sealed[default=" + DayArchive.DEFAULT_GRACE_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(STORE, true, "where messages are kept, cassandra or local[default=cassandra]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(STORE_DIR, true, "directory of the local message store[default=roomstore-data]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(METRICS_CSV, true, "directory to write metrics to as csv files, instead of the log");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(METRICS_PERIOD, true, "seconds between metrics reports, 0 for jmx only[default=60]");
+        option.setRequired(false);
+        options.addOption(option);
+
         option = new Option(ENDPOINTS, true, "space separated list of cassandra server server/ports");
         option.setOptionalArg(true);
         option.setRequired(false);
@@ -114,9 +518,158 @@ public class RoomStore {
         option.setRequired(false);
         options.addOption(option);
 
+        option = new Option(INGEST_QUEUE_SIZE, true, "number of messages that can wait to be written[default=" + IngestPipeline.DEFAULT_QUEUE_SIZE + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(INGEST_WORKERS, true, "number of threads writing messages to cassandra[default=" + IngestPipeline.DEFAULT_WORKERS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(INGEST_OVERFLOW, true, "what to do when the ingest queue is full, block, drop_newest or drop_oldest[default=block]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SHED_LAG_MILLIS, true,
+                "average milliseconds messages may wait to be written before word indexing is deferred, 0 to never defer it[default="
+                        + LoadShedder.DEFAULT_MAX_LAG_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SHED_LATENCY_MILLIS, true,
+                "average milliseconds a chunk of messages may take to write before word indexing is deferred[default=" + LoadShedder.DEFAULT_MAX_LATENCY_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SHED_DEDUPE_WINDOW, true,
+                "recent lines per channel that repeated lines aren't indexed against while deferring[default=" + LoadShedder.DEFAULT_DEDUPE_WINDOW + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SHED_MAX_DEFERRED, true,
+                "messages whose word indexing can be deferred at once, past which it isn't[default=" + LoadShedder.DEFAULT_MAX_DEFERRED + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SPOOL_DIR, true, "directory of the write ahead spool that messages are written to before cassandra[default=none]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SPOOL_SEGMENT_SIZE, true, "size in bytes of each write ahead spool segment file[default=67108864]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(COUNTER_FLUSH_MILLIS, true,
+                "how often summed topic counters are written in milliseconds[default=" + CounterAggregator.DEFAULT_FLUSH_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(COUNTER_FLUSH_THRESHOLD, true,
+                "number of distinct words that forces an early topic counter write[default=" + CounterAggregator.DEFAULT_FLUSH_THRESHOLD + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(TRENDING_WORDS, true,
+                "distinct words counted per channel per hour for ~ top and ~ trending[default=" + TrendingTracker.DEFAULT_WORDS_PER_SLOT + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(TRENDING_CHECKPOINT_MILLIS, true,
+                "how often the ~ top and ~ trending counts are saved in milliseconds[default=" + TrendingTracker.DEFAULT_CHECKPOINT_MILLIS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(VOCABULARY_WORDS, true,
+                "distinct words per channel the filters that skip topic queries for unknown words are sized for, 0 for none[default="
+                        + VocabularyFilter.DEFAULT_WORDS_PER_CHANNEL + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SEEN_CACHE_SIZE, true, "number of users whose last message is cached for ~ seen[default=" + LastSeenCache.DEFAULT_SIZE + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(SEEN_CACHE_TTL, true, "minutes a cached last message is kept for ~ seen[default=" + LastSeenCache.DEFAULT_TTL_MINUTES + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(POST_RATE, true, "lines per second sent in replies[default=" + MessagePoster.DEFAULT_LINES_PER_SECOND + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(POST_BURST, true, "lines that can be sent at once before the rate applies[default=" + MessagePoster.DEFAULT_BURST + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(POST_BACKLOG, true, "lines that can wait to be sent to any one user[default=" + MessagePoster.DEFAULT_MAX_BACKLOG + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(COMMAND_THREADS, true, "threads running ~ commands, or virtual for a virtual thread per command[default=" + CommandExecutor.DEFAULT_THREADS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(COMMAND_USER_LIMIT, true, "~ commands a user can have running at once[default=" + CommandExecutor.DEFAULT_MAX_PER_USER + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(COMMAND_TIMEOUT, true, "seconds a ~ command may run before it is cancelled[default=" + CommandExecutor.DEFAULT_TIMEOUT_SECONDS + "]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(STOP_WORDS, true, "file of words, one per line, that aren't indexed as topics, or none[default=built in english list]");
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(BACKFILL_TOPICS, true, "copy the legacy topics table into topic_buckets, optionally resuming from a logged token");
+        option.setOptionalArg(true);
+        option.setRequired(false);
+        options.addOption(option);
+
+        option = new Option(MIGRATE_SCHEMA, true, "copy tables from older schema generations into the current one, optionally resuming from a logged token");
+        option.setOptionalArg(true);
+        option.setRequired(false);
+        options.addOption(option);
+
         return options;
     }
 
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
     private static String commandLineRepresentation(String...args) {
         StringBuilder sb = new StringBuilder();
         String space = "Roomstore ";
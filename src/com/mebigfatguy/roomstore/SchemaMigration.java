@@ -0,0 +1,207 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * copies the generation 1 tables into the current schema while the bot is recording: roomstore.messages into
+ * roomstore.channel_messages, then roomstore.channel_messages into the per user roomstore.user_messages, then
+ * roomstore.topic_messages into the monthly roomstore.topic_buckets. Every table is only ever inserted into, so copying
+ * a row twice is harmless. Progress is logged with a token that can be passed back in to resume an interrupted run, and
+ * once everything is copied the writer stops reading the old tables. A run started at the timelines phase only fills in
+ * the timelines, for installs that were migrated before they existed.
+ */
+public class SchemaMigration implements Runnable {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final String MESSAGES_PHASE = "messages";
+    private static final String TIMELINES_PHASE = "timelines";
+    private static final String TOPICS_PHASE = "topics";
+    private static final String[] PHASES = { MESSAGES_PHASE, TIMELINES_PHASE, TOPICS_PHASE };
+    private static final String[] QUERIES = { "select day, channel, date_time, user, message from roomstore.messages",
+            "select channel, date_time, user, message from roomstore.channel_messages",
+            "select channel, word, date_time, user, message from roomstore.topic_messages" };
+
+    private final CassandraWriter writer;
+    private final Session session;
+    private final String startToken;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Cache<String, Boolean> writtenTopicMonths = CacheBuilder.newBuilder().maximumSize(100000).build();
+    private PreparedStatement addMessagePS;
+    private PreparedStatement addUserMessagePS;
+    private PreparedStatement addTopicPS;
+    private PreparedStatement addTopicMonthPS;
+
+    public SchemaMigration(CassandraWriter cassandraWriter, String resumeToken) {
+        writer = cassandraWriter;
+        session = writer.getSession();
+        startToken = resumeToken;
+    }
+
+    @Override
+    public void run() {
+        try {
+            addMessagePS = session.prepare("insert into roomstore.channel_messages (channel, day, date_time, user, message) values (?,?,?,?,?)");
+            addUserMessagePS = session.prepare("insert into roomstore.user_messages (channel, user, date_time, message) values (?, ?, ?, ?)");
+            addTopicPS = session
+                    .prepare("insert into roomstore.topic_buckets (channel, word, month, date_time, user, message) values (?, ?, ?, ?, ?, ?)");
+            addTopicMonthPS = session.prepare("insert into roomstore.topic_months (channel, word, month) values (?, ?, ?)");
+
+            // a token is a phase and where in it to resume, or just a phase to start from the beginning of
+            int startPhase = 0;
+            String resumeToken = null;
+            for (int i = 0; i < PHASES.length; i++) {
+                if (PHASES[i].equals(startToken)) {
+                    startPhase = i;
+                } else if ((startToken != null) && startToken.startsWith(PHASES[i] + ':')) {
+                    startPhase = i;
+                    resumeToken = startToken;
+                }
+            }
+            boolean timelinesOnly = TIMELINES_PHASE.equals(PHASES[startPhase]);
+            int endPhase = timelinesOnly ? startPhase + 1 : PHASES.length;
+            for (int i = startPhase; i < endPhase; i++) {
+                copyTable(PHASES[i], QUERIES[i], (i == startPhase) ? resumeToken : null);
+            }
+
+            if (!inFlight.tryAcquire(MAX_IN_FLIGHT, 1, TimeUnit.MINUTES)) {
+                IRCConnector.LOGGER.error("Schema migration timed out waiting for its last writes, copied {}", copied.get());
+                return;
+            }
+            inFlight.release(MAX_IN_FLIGHT);
+
+            if (failed.get() > 0) {
+                IRCConnector.LOGGER.error("Schema migration copied {} rows but failed on {}, run it again to finish", copied.get(), failed.get());
+                return;
+            }
+            if (!TOPICS_PHASE.equals(PHASES[startPhase])) {
+                writer.markTimelinesBuilt();
+            }
+            if (timelinesOnly) {
+                IRCConnector.LOGGER.info("User timelines filled in, copied {} rows", Long.valueOf(copied.get()));
+                if (!writer.isMigrated()) {
+                    IRCConnector.LOGGER.info("Run with -migrate_schema {} to copy the remaining older tables", TOPICS_PHASE);
+                }
+                return;
+            }
+            writer.markMigrated();
+            IRCConnector.LOGGER.info("Schema migration to generation {} complete, copied {} rows", CassandraWriter.SCHEMA_GENERATION, copied.get());
+        } catch (InterruptedException ie) {
+            IRCConnector.LOGGER.info("Schema migration interrupted, copied {}", copied.get());
+        } catch (RuntimeException e) {
+            IRCConnector.LOGGER.error("Schema migration failed after copying {}", copied.get(), e);
+        }
+    }
+
+    private void copyTable(String phase, String query, String resumeToken) throws InterruptedException {
+        Statement scan = session.prepare(query).bind().setFetchSize(FETCH_SIZE);
+        if (resumeToken != null) {
+            scan.setPagingState(PagingState.fromString(resumeToken.substring(phase.length() + 1)));
+        }
+
+        ResultSet rs = session.execute(scan);
+        long scanned = 0;
+        String pageToken = resumeToken;
+        while (!rs.isExhausted()) {
+            int available = rs.getAvailableWithoutFetching();
+            PagingState nextPage = rs.getExecutionInfo().getPagingState();
+            for (int i = 0; i < available; i++) {
+                Row row = rs.one();
+                if (MESSAGES_PHASE.equals(phase)) {
+                    copyMessage(row);
+                } else if (TIMELINES_PHASE.equals(phase)) {
+                    copyTimeline(row);
+                } else {
+                    copyTopic(row);
+                }
+            }
+            scanned += available;
+
+            // copies from this page may still be in flight, so resuming restarts the page, which is harmless
+            if (pageToken != null) {
+                IRCConnector.LOGGER.info("Schema migration scanned {} {} rows, copied {}, failed {}, resume token {}", scanned, phase, copied.get(),
+                        failed.get(), pageToken);
+            }
+            pageToken = (nextPage == null) ? null : phase + ':' + nextPage;
+        }
+    }
+
+    private void copyMessage(Row row) throws InterruptedException {
+        String channel = row.getString("channel");
+        Date dateTime = row.getTimestamp("date_time");
+        copy(addMessagePS.bind(channel, row.getTimestamp("day"), dateTime, row.getString("user"), row.getString("message")));
+    }
+
+    private void copyTimeline(Row row) throws InterruptedException {
+        copy(addUserMessagePS.bind(row.getString("channel"), row.getString("user"), row.getTimestamp("date_time"), row.getString("message")));
+    }
+
+    private void copyTopic(Row row) throws InterruptedException {
+        String channel = row.getString("channel");
+        String word = row.getString("word");
+        Date dateTime = row.getTimestamp("date_time");
+        Date month = TimeKeeper.monthOf(dateTime.getTime());
+
+        String bucket = channel + '\u0000' + word + '\u0000' + month.getTime();
+        if (writtenTopicMonths.getIfPresent(bucket) == null) {
+            writtenTopicMonths.put(bucket, Boolean.TRUE);
+            copy(addTopicMonthPS.bind(channel, word, month));
+        }
+        copy(addTopicPS.bind(channel, word, month, dateTime, row.getString("user"), row.getString("message")));
+    }
+
+    private void copy(Statement statement) throws InterruptedException {
+        inFlight.acquire();
+        ResultSetFuture insert = session.executeAsync(statement);
+        Futures.addCallback(insert, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                copied.incrementAndGet();
+                inFlight.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failed.incrementAndGet();
+                inFlight.release();
+                IRCConnector.LOGGER.error("Schema migration failed copying a row", t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+}
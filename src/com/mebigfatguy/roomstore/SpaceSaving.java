@@ -0,0 +1,174 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * the Space-Saving heavy hitters summary: at most capacity words are counted, and a word that isn't counted takes over
+ * the smallest counter, inheriting its count as its possible overcount. Any word said more than total / capacity times
+ * is guaranteed to be counted, and memory stays fixed however many distinct words go by. The counters are kept in a min
+ * heap, so finding the smallest is constant time and every update is logarithmic.
+ */
+class SpaceSaving {
+
+    private final int capacity;
+    private final String[] words;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<String, Integer> positions;
+    private int size;
+
+    public SpaceSaving(int maxWords) {
+        capacity = maxWords;
+        words = new String[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        positions = new HashMap<>(capacity * 2);
+    }
+
+    public void offer(String word, long delta) {
+        Integer position = positions.get(word);
+        if (position != null) {
+            int pos = position.intValue();
+            counts[pos] += delta;
+            siftDown(pos);
+        } else if (size < capacity) {
+            set(size, word, delta, 0);
+            siftUp(size++);
+        } else {
+            positions.remove(words[0]);
+            long min = counts[0];
+            set(0, word, min + delta, min);
+            siftDown(0);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        positions.clear();
+        for (int i = 0; i < size; i++) {
+            words[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * adds each counted word's count, which may be over by up to its error, to a running total per word
+     */
+    public void addTo(Map<String, long[]> totals) {
+        for (int i = 0; i < size; i++) {
+            long[] total = totals.get(words[i]);
+            if (total == null) {
+                total = new long[1];
+                totals.put(words[i], total);
+            }
+            total[0] += counts[i];
+        }
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dos.writeUTF(words[i]);
+            dos.writeLong(counts[i]);
+            dos.writeLong(errors[i]);
+        }
+    }
+
+    /**
+     * replaces the summary with one written by {@link #write(DataOutputStream)}, dropping the smallest counters if it
+     * was written with a larger capacity
+     */
+    public void read(DataInputStream dis) throws IOException {
+        clear();
+        int entries = dis.readInt();
+        for (int i = 0; i < entries; i++) {
+            String word = dis.readUTF();
+            long count = dis.readLong();
+            long error = dis.readLong();
+            if (size < capacity) {
+                set(size, word, count, error);
+                siftUp(size++);
+            } else if (count > counts[0]) {
+                positions.remove(words[0]);
+                set(0, word, count, error);
+                siftDown(0);
+            }
+        }
+    }
+
+    private void set(int pos, String word, long count, long error) {
+        words[pos] = word;
+        counts[pos] = count;
+        errors[pos] = error;
+        positions.put(word, Integer.valueOf(pos));
+    }
+
+    private void siftUp(int start) {
+        int pos = start;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (counts[parent] <= counts[pos]) {
+                return;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int start) {
+        int pos = start;
+        while (true) {
+            int child = (pos << 1) + 1;
+            if (child >= size) {
+                return;
+            }
+            if (((child + 1) < size) && (counts[child + 1] < counts[child])) {
+                child++;
+            }
+            if (counts[pos] <= counts[child]) {
+                return;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String word = words[i];
+        long count = counts[i];
+        long error = errors[i];
+        words[i] = words[j];
+        counts[i] = counts[j];
+        errors[i] = errors[j];
+        words[j] = word;
+        counts[j] = count;
+        errors[j] = error;
+        positions.put(words[i], Integer.valueOf(i));
+        positions.put(words[j], Integer.valueOf(j));
+    }
+}
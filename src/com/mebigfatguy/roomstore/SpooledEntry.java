@@ -0,0 +1,37 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+/**
+ * a message read back from the write ahead spool, along with where it was found, so that the spool can be
+ * checkpointed once it has been written
+ */
+public class SpooledEntry extends IngestEntry {
+
+    private final long position;
+
+    public SpooledEntry(String entryChannel, String entrySender, String entryMessage, long entryTimestamp, long spoolPosition) {
+        super(entryChannel, entrySender, entryMessage, entryTimestamp);
+        position = spoolPosition;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
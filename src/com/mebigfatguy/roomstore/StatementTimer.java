@@ -0,0 +1,87 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Statement;
+
+/**
+ * times every request the driver makes, sync or async, under the name its prepared statement was given, so each query
+ * and insert has its own latency timer and error meter. Batches are timed under the name of the statements in them,
+ * with a histogram of their sizes.
+ */
+class StatementTimer implements LatencyTracker {
+
+    private static final String UNNAMED = "other";
+
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
+    /**
+     * names a prepared statement for its metrics
+     */
+    public PreparedStatement name(String name, PreparedStatement statement) {
+        names.put(statement.getQueryString(), name);
+        return statement;
+    }
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        String name;
+        if (statement instanceof BatchStatement) {
+            BatchStatement batch = (BatchStatement) statement;
+            name = MetricRegistry.name("cassandra", "batch", (batch.size() == 0) ? UNNAMED : nameOf(batch.getStatements().iterator().next()));
+            Instrumentation.REGISTRY.histogram(MetricRegistry.name(name, "size")).update(batch.size());
+        } else {
+            name = MetricRegistry.name("cassandra", nameOf(statement));
+        }
+
+        Instrumentation.REGISTRY.timer(name).update(newLatencyNanos, TimeUnit.NANOSECONDS);
+        if (exception != null) {
+            Instrumentation.REGISTRY.meter(MetricRegistry.name(name, "errors")).mark();
+        }
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+    }
+
+    private String nameOf(Statement statement) {
+        if (statement instanceof BoundStatement) {
+            String name = names.get(((BoundStatement) statement).preparedStatement().getQueryString());
+            if (name != null) {
+                return name;
+            }
+        }
+        return UNNAMED;
+    }
+}
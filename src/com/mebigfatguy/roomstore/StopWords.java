@@ -0,0 +1,78 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * a fixed set of stop words, either the built in english list, or one loaded from a file with a word per line, where
+ * blank lines and lines starting with # are ignored
+ */
+public class StopWords implements StopWordFilter {
+
+    public static final StopWords ENGLISH = new StopWords(Arrays.asList("a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if",
+            "in", "into", "is", "it", "no", "not", "of", "on", "or", "such", "that", "the", "their", "then", "there", "these", "they", "this",
+            "to", "was", "will", "with", "i", "you", "he", "she", "we", "me", "my", "so", "do", "just"));
+
+    private final Set<String> words;
+
+    public StopWords(Iterable<String> stopWords) {
+        words = new HashSet<>();
+        for (String word : stopWords) {
+            words.add(word.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public static StopWords load(File file) throws IOException {
+        Set<String> words = new HashSet<>();
+        try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    words.add(line);
+                }
+            }
+        }
+        return new StopWords(words);
+    }
+
+    @Override
+    public boolean isStopWord(String word) {
+        return words.contains(word);
+    }
+
+    @Override
+    public int hashCode() {
+        return words.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof StopWords) && words.equals(((StopWords) o).words);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * day and month arithmetic and formatting for message times, in the zone roomstore was started in. The boundaries of
+ * the last day and month each thread looked up are cached, so truncating a time in the same day, which is nearly every
+ * time, is a couple of comparisons and allocates nothing beyond the Date handed back, if one is, and they are only
+ * recomputed once the clock or the data moves past midnight. Dates are never shared, as callers can modify them.
+ * Caching per thread keeps threads working through different days, such as bulk imports, from evicting each other's.
+ * Formatters are immutable and shared, unlike Calendar and DateFormat, so any thread can use them.
+ */
+public final class TimeKeeper {
+
+    /**
+     * the format days are given in to ~ date
+     */
+    public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+    /**
+     * the format times of day are given in to ~ between and ~ since
+     */
+    public static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("H:mm");
+
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd ");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final int DAY = 0;
+    private static final int MONTH = 1;
+    private static final ThreadLocal<Span[]> LAST_SPANS = ThreadLocal.withInitial(() -> new Span[] { daySpan(System.currentTimeMillis()),
+            monthSpan(System.currentTimeMillis()) });
+
+    private TimeKeeper() {
+    }
+
+    /**
+     * @return the time midnight started the day a time falls in
+     */
+    public static long startOfDay(long time) {
+        return day(time).start;
+    }
+
+    /**
+     * @return the time midnight started the day after the one a day start falls in, whether or not that day was 24
+     *         hours long
+     */
+    public static long nextDay(long dayStart) {
+        // days are 23 to 25 hours long, so 25 hours in is always on the next day
+        return startOfDay(dayStart + TimeUnit.HOURS.toMillis(25));
+    }
+
+    /**
+     * @return the first day of the month a time falls in, as a new date the caller may keep or modify
+     */
+    public static Date monthOf(long time) {
+        Span[] spans = LAST_SPANS.get();
+        Span month = spans[MONTH];
+        if (!month.contains(time)) {
+            month = monthSpan(time);
+            spans[MONTH] = month;
+        }
+        return new Date(month.start);
+    }
+
+    /**
+     * @return the day a time falls in, as a new date the caller may keep or modify
+     */
+    public static Date dayOf(long time) {
+        return new Date(day(time).start);
+    }
+
+    /**
+     * @return today, as a new date the caller may keep or modify
+     */
+    public static Date today() {
+        return dayOf(System.currentTimeMillis());
+    }
+
+    /**
+     * parses a day given as MM/dd/yyyy
+     *
+     * @throws java.time.format.DateTimeParseException
+     *             if it isn't a day
+     */
+    public static Date parseDay(String day) {
+        return Date.from(LocalDate.parse(day, DATE_FORMAT).atStartOfDay(ZONE).toInstant());
+    }
+
+    /**
+     * parses a time of day given as H:mm, on the day a time falls in
+     *
+     * @throws java.time.format.DateTimeParseException
+     *             if it isn't a time of day
+     */
+    public static long atTime(long day, String time) {
+        LocalTime timeOfDay = LocalTime.parse(time, TIME_FORMAT);
+        return Instant.ofEpochMilli(day).atZone(ZONE).toLocalDate().atTime(timeOfDay).atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the day a time falls in as yyyy-MM-dd, which sorts in time order, for naming files
+     */
+    public static String dayName(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZONE).toLocalDate().toString();
+    }
+
+    /**
+     * appends a time as yyyy-MM-dd HH:mm, reusing the formatted day so that nothing is allocated when the time falls on
+     * the same day as the last one
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long time) {
+        Span span = day(time);
+        if (!span.regular) {
+            // a day with a daylight saving change can't be counted off in minutes from midnight
+            return sb.append(DATE_TIME_FORMAT.format(Instant.ofEpochMilli(time).atZone(ZONE)));
+        }
+
+        int minutes = (int) ((time - span.start) / MINUTE_MILLIS);
+        int hours = minutes / 60;
+        minutes %= 60;
+        sb.append(span.label);
+        if (hours < 10) {
+            sb.append('0');
+        }
+        sb.append(hours).append(':');
+        if (minutes < 10) {
+            sb.append('0');
+        }
+        return sb.append(minutes);
+    }
+
+    public static String format(long time) {
+        return appendTo(new StringBuilder(16), time).toString();
+    }
+
+    private static Span day(long time) {
+        Span[] spans = LAST_SPANS.get();
+        Span day = spans[DAY];
+        if (!day.contains(time)) {
+            day = daySpan(time);
+            spans[DAY] = day;
+        }
+        return day;
+    }
+
+    private static Span daySpan(long time) {
+        ZonedDateTime start = Instant.ofEpochMilli(time).atZone(ZONE).toLocalDate().atStartOfDay(ZONE);
+        return new Span(start, start.plusDays(1));
+    }
+
+    private static Span monthSpan(long time) {
+        ZonedDateTime start = Instant.ofEpochMilli(time).atZone(ZONE).toLocalDate().withDayOfMonth(1).atStartOfDay(ZONE);
+        return new Span(start, start.plusMonths(1));
+    }
+
+    /**
+     * an immutable range of time, from the start up to but not including the end
+     */
+    private static final class Span {
+        final long start;
+        final long end;
+        final String label;
+        final boolean regular;
+
+        Span(ZonedDateTime spanStart, ZonedDateTime spanEnd) {
+            start = spanStart.toInstant().toEpochMilli();
+            end = spanEnd.toInstant().toEpochMilli();
+            label = DAY_FORMAT.format(spanStart);
+            regular = (end - start) == DAY_MILLIS;
+        }
+
+        boolean contains(long time) {
+            return (time >= start) && (time < end);
+        }
+    }
+}
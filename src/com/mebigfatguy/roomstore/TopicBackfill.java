@@ -0,0 +1,182 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * copies the legacy roomstore.topics rows, which only point at messages, into the monthly roomstore.topic_buckets,
+ * which carry the message text, looking up each message once. It can run while the bot is recording, as both tables are
+ * only ever inserted into. Progress is logged with a paging token that can be passed back in to resume an interrupted
+ * run.
+ */
+public class TopicBackfill implements Runnable {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final Session session;
+    private final String startToken;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Cache<String, Boolean> writtenTopicMonths = CacheBuilder.newBuilder().maximumSize(100000).build();
+    private PreparedStatement scanTopicsPS;
+    private PreparedStatement getMessagePS;
+    private PreparedStatement addTopicPS;
+    private PreparedStatement addTopicMonthPS;
+    private VocabularyFilter vocabularyFilter;
+
+    public TopicBackfill(Session s, String pagingToken) {
+        session = s;
+        startToken = pagingToken;
+    }
+
+    /**
+     * adds the copied words to a filter, as they may never have been said since
+     */
+    public void setVocabularyFilter(VocabularyFilter filter) {
+        vocabularyFilter = filter;
+    }
+
+    @Override
+    public void run() {
+        try {
+            scanTopicsPS = session.prepare("select channel, word, date_time, user from roomstore.topics");
+            getMessagePS = session.prepare("select message from roomstore.messages where day = ? and channel = ? and date_time = ? and user = ?");
+            addTopicPS = session
+                    .prepare("insert into roomstore.topic_buckets (channel, word, month, date_time, user, message) values (?, ?, ?, ?, ?, ?)");
+            addTopicMonthPS = session.prepare("insert into roomstore.topic_months (channel, word, month) values (?, ?, ?)");
+
+            Statement scan = scanTopicsPS.bind().setFetchSize(FETCH_SIZE);
+            if (startToken != null) {
+                scan.setPagingState(PagingState.fromString(startToken));
+            }
+
+            ResultSet rs = session.execute(scan);
+            long scanned = 0;
+            String pageToken = startToken;
+            while (!rs.isExhausted()) {
+                int available = rs.getAvailableWithoutFetching();
+                PagingState nextPage = rs.getExecutionInfo().getPagingState();
+                for (int i = 0; i < available; i++) {
+                    copy(rs.one());
+                }
+                scanned += available;
+
+                // copies from this page may still be in flight, so resuming restarts the page, which is harmless
+                if (pageToken != null) {
+                    IRCConnector.LOGGER.info("Topic backfill scanned {} rows, copied {}, missing {}, failed {}, resume token {}", scanned,
+                            copied.get(), missing.get(), failed.get(), pageToken);
+                }
+                pageToken = (nextPage == null) ? null : nextPage.toString();
+            }
+
+            inFlight.acquire(MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
+            if (failed.get() > 0) {
+                IRCConnector.LOGGER.error("Topic backfill scanned {} rows, copied {}, missing {}, but failed on {}, run it again to finish", scanned,
+                        copied.get(), missing.get(), failed.get());
+            } else {
+                IRCConnector.LOGGER.info("Topic backfill complete, scanned {} rows, copied {}, missing {}", scanned, copied.get(), missing.get());
+            }
+        } catch (InterruptedException ie) {
+            IRCConnector.LOGGER.info("Topic backfill interrupted, copied {}", copied.get());
+        } catch (RuntimeException e) {
+            IRCConnector.LOGGER.error("Topic backfill failed after copying {}", copied.get(), e);
+        }
+    }
+
+    private void copy(Row row) throws InterruptedException {
+        final String channel = row.getString("channel");
+        final String word = row.getString("word");
+        final Date dateTime = row.getTimestamp("date_time");
+        final String user = row.getString("user");
+
+        final Date day = TimeKeeper.dayOf(dateTime.getTime());
+        final Date month = TimeKeeper.monthOf(dateTime.getTime());
+
+        inFlight.acquire();
+        ResultSetFuture lookup = session.executeAsync(getMessagePS.bind(day, channel, dateTime, user));
+        Futures.addCallback(lookup, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet messageRS) {
+                Row messageRow = messageRS.one();
+                if (messageRow == null) {
+                    missing.incrementAndGet();
+                    inFlight.release();
+                    return;
+                }
+
+                if (vocabularyFilter != null) {
+                    vocabularyFilter.add(channel, word);
+                }
+                // reads find a word's months through topic_months, so the copy only counts once its month is written too
+                final String bucket = channel + '\u0000' + word + '\u0000' + month.getTime();
+                ResultSetFuture insert = session.executeAsync(addTopicPS.bind(channel, word, month, dateTime, user, messageRow.getString("message")));
+                ListenableFuture<?> copy = insert;
+                if (writtenTopicMonths.getIfPresent(bucket) == null) {
+                    writtenTopicMonths.put(bucket, Boolean.TRUE);
+                    copy = Futures.allAsList(insert, session.executeAsync(addTopicMonthPS.bind(channel, word, month)));
+                }
+                Futures.addCallback(copy, new FutureCallback<Object>() {
+                    @Override
+                    public void onSuccess(Object result) {
+                        copied.incrementAndGet();
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        writtenTopicMonths.invalidate(bucket);
+                        onFailedCopy(channel, word, t);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                onFailedCopy(channel, word, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void onFailedCopy(String channel, String word, Throwable t) {
+        failed.incrementAndGet();
+        inFlight.release();
+        IRCConnector.LOGGER.error("Topic backfill failed copying {} on channel {}", word, channel, t);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * answers multi word topic queries by intersecting topic partitions on their (date_time, user) clustering keys. The
+ * words are ordered rarest first using topic_counters, and the rarest word's keys drive a merge join, with the other
+ * partitions only scanned as far as needed to confirm or reject each candidate. Only the monthly buckets that every
+ * word has are read, and a cursor that falls behind skips whole months. Message text is only read for the hits.
+ */
+class TopicQueryEngine {
+
+    private static final int KEY_FETCH_SIZE = 1000;
+    private static final long LEGACY_BUCKET = Long.MIN_VALUE;
+
+    private final Session session;
+    private final PreparedStatement getCountPS;
+    private final PreparedStatement getTopicMonthsPS;
+    private final PreparedStatement getTopicKeysPS;
+    private final PreparedStatement getTopicMessagePS;
+    private final PreparedStatement getLegacyTopicKeysPS;
+    private final PreparedStatement getLegacyTopicMessagePS;
+
+    /**
+     * prepares the statements all at once, and waits for them
+     */
+    public TopicQueryEngine(Session s, StatementTimer statementTimer) {
+        session = s;
+        ListenableFuture<PreparedStatement> getCount = session
+                .prepareAsync("select count from roomstore.topic_counters where prefix = ? and word = ?");
+        ListenableFuture<PreparedStatement> getTopicMonths = session
+                .prepareAsync("select month from roomstore.topic_months where channel = ? and word = ?");
+        ListenableFuture<PreparedStatement> getTopicKeys = session
+                .prepareAsync("select date_time, user from roomstore.topic_buckets where channel = ? and word = ? and month = ?");
+        ListenableFuture<PreparedStatement> getTopicMessage = session.prepareAsync(
+                "select message from roomstore.topic_buckets where channel = ? and word = ? and month = ? and date_time = ? and user = ?");
+        ListenableFuture<PreparedStatement> getLegacyTopicKeys = session
+                .prepareAsync("select date_time, user from roomstore.topic_messages where channel = ? and word = ?");
+        ListenableFuture<PreparedStatement> getLegacyTopicMessage = session
+                .prepareAsync("select message from roomstore.topic_messages where channel = ? and word = ? and date_time = ? and user = ?");
+
+        getCountPS = statementTimer.name("getCount", Futures.getUnchecked(getCount));
+        getTopicMonthsPS = statementTimer.name("getTopicMonths", Futures.getUnchecked(getTopicMonths));
+        getTopicKeysPS = statementTimer.name("getTopicKeys", Futures.getUnchecked(getTopicKeys));
+        getTopicMessagePS = statementTimer.name("getTopicMessage", Futures.getUnchecked(getTopicMessage));
+        getLegacyTopicKeysPS = statementTimer.name("getLegacyTopicKeys", Futures.getUnchecked(getLegacyTopicKeys));
+        getLegacyTopicMessagePS = statementTimer.name("getLegacyTopicMessage", Futures.getUnchecked(getLegacyTopicMessage));
+    }
+
+    /**
+     * returns up to limit messages, newest first, that mention all of the words
+     *
+     * @param includeLegacy
+     *            whether to also search the generation 1 topic table, which is read after all the monthly buckets
+     */
+    public List<Message> getTopicMessages(String channel, List<String> words, int limit, boolean includeLegacy) {
+        String[] distinctWords = new LinkedHashSet<>(words).toArray(new String[0]);
+        if ((distinctWords.length == 0) || (limit <= 0)) {
+            return Collections.emptyList();
+        }
+
+        KeyCursor[] cursors = orderBySelectivity(channel, includeLegacy, distinctWords);
+        if (cursors == null) {
+            return Collections.emptyList();
+        }
+        List<TopicKey> hits = intersect(cursors, limit);
+        return fetchMessages(channel, cursors[0].word, hits);
+    }
+
+    /**
+     * looks up how common each word is and which months it has, returning a cursor per word over the months they all
+     * share, rarest word first, or null if they share none
+     */
+    private KeyCursor[] orderBySelectivity(String channel, boolean includeLegacy, String... words) {
+        ResultSetFuture[] countFutures = new ResultSetFuture[words.length];
+        ResultSetFuture[] monthFutures = new ResultSetFuture[words.length];
+        for (int i = 0; i < words.length; i++) {
+            countFutures[i] = session.executeAsync(getCountPS.bind(MessageTokenizer.prefixOf(words[i]), words[i]));
+            monthFutures[i] = session.executeAsync(getTopicMonthsPS.bind(channel, words[i]));
+        }
+
+        Set<Long> commonMonths = null;
+        for (ResultSetFuture monthFuture : monthFutures) {
+            Set<Long> months = new TreeSet<>(Collections.reverseOrder());
+            for (Row row : monthFuture.getUninterruptibly()) {
+                months.add(Long.valueOf(row.getTimestamp("month").getTime()));
+            }
+            if (commonMonths == null) {
+                commonMonths = months;
+            } else {
+                commonMonths.retainAll(months);
+            }
+        }
+
+        if (includeLegacy) {
+            commonMonths.add(Long.valueOf(LEGACY_BUCKET));
+        }
+        if (commonMonths.isEmpty()) {
+            return null;
+        }
+
+        long[] buckets = new long[commonMonths.size()];
+        int b = 0;
+        for (Long month : commonMonths) {
+            buckets[b++] = month.longValue();
+        }
+
+        KeyCursor[] cursors = new KeyCursor[words.length];
+        for (int i = 0; i < words.length; i++) {
+            Row row = countFutures[i].getUninterruptibly().one();
+            // counts are flushed lazily, so a missing count only means rare, not absent
+            long count = (row == null) ? 0 : row.getLong("count");
+            cursors[i] = new KeyCursor(channel, words[i], count, buckets);
+        }
+
+        Arrays.sort(cursors, new Comparator<KeyCursor>() {
+            @Override
+            public int compare(KeyCursor c1, KeyCursor c2) {
+                return Long.compare(c1.count, c2.count);
+            }
+        });
+        return cursors;
+    }
+
+    private static List<TopicKey> intersect(KeyCursor[] cursors, int limit) {
+        List<TopicKey> hits = new ArrayList<>();
+        for (KeyCursor cursor : cursors) {
+            if (!cursor.advance()) {
+                return hits;
+            }
+        }
+
+        KeyCursor driver = cursors[0];
+        while (hits.size() < limit) {
+            TopicKey candidate = driver.key;
+            boolean matched = true;
+            for (int i = 1; i < cursors.length; i++) {
+                if (!cursors[i].seek(candidate)) {
+                    return hits;
+                }
+
+                if (cursors[i].key.compareTo(candidate) != 0) {
+                    matched = false;
+                    if (!driver.seek(cursors[i].key)) {
+                        return hits;
+                    }
+                    break;
+                }
+            }
+
+            if (matched) {
+                hits.add(candidate);
+                if (!driver.advance()) {
+                    return hits;
+                }
+            }
+        }
+
+        return hits;
+    }
+
+    private List<Message> fetchMessages(String channel, String word, List<TopicKey> hits) {
+        List<ResultSetFuture> futures = new ArrayList<>(hits.size());
+        for (TopicKey key : hits) {
+            futures.add(session.executeAsync((key.bucket == LEGACY_BUCKET)
+                    ? getLegacyTopicMessagePS.bind(channel, word, new Date(key.dateTime), key.user)
+                    : getTopicMessagePS.bind(channel, word, new Date(key.bucket), new Date(key.dateTime), key.user)));
+        }
+
+        List<Message> messages = new ArrayList<>(hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            Row row = futures.get(i).getUninterruptibly().one();
+            if (row != null) {
+                TopicKey key = hits.get(i);
+                messages.add(new Message(channel, key.user, key.dateTime, row.getString("message")));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * a topic partition's clustering key, ordered the way the partition is, newest first, along with the bucket it was
+     * found in. The bucket is not part of the ordering, as a key is in the same month's bucket for every word.
+     */
+    private static class TopicKey implements Comparable<TopicKey> {
+        final long bucket;
+        final long dateTime;
+        final String user;
+
+        TopicKey(long keyBucket, long keyDateTime, String keyUser) {
+            bucket = keyBucket;
+            dateTime = keyDateTime;
+            user = keyUser;
+        }
+
+        @Override
+        public int compareTo(TopicKey that) {
+            int cmp = Long.compare(that.dateTime, dateTime);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return user.compareTo(that.user);
+        }
+    }
+
+    /**
+     * walks one word's topic buckets, newest month first, each in clustering order, paging keys in as needed. The
+     * generation 1 partition, if included, comes last; while it is being migrated its keys can overlap the monthly
+     * buckets', so a few matches may be missed until the migration completes.
+     */
+    private class KeyCursor {
+        final String channel;
+        final String word;
+        final long count;
+        final long[] buckets;
+        int bucket;
+        ResultSet rs;
+        TopicKey key;
+
+        KeyCursor(String cursorChannel, String cursorWord, long wordCount, long[] cursorBuckets) {
+            channel = cursorChannel;
+            word = cursorWord;
+            count = wordCount;
+            buckets = cursorBuckets;
+        }
+
+        boolean advance() {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("topic query for " + word + " was cancelled");
+            }
+
+            while (bucket < buckets.length) {
+                if (rs == null) {
+                    long month = buckets[bucket];
+                    rs = session.execute(((month == LEGACY_BUCKET) ? getLegacyTopicKeysPS.bind(channel, word)
+                            : getTopicKeysPS.bind(channel, word, new Date(month))).setFetchSize(KEY_FETCH_SIZE));
+                }
+
+                Row row = rs.one();
+                if (row != null) {
+                    key = new TopicKey(buckets[bucket], row.getTimestamp("date_time").getTime(), row.getString("user"));
+                    return true;
+                }
+                rs = null;
+                bucket++;
+            }
+
+            key = null;
+            return false;
+        }
+
+        /**
+         * moves forward to the first key at or past the target, skipping straight to the target's month if it is
+         * older than the current bucket
+         */
+        boolean seek(TopicKey target) {
+            if ((key.compareTo(target) < 0) && (buckets[bucket] != LEGACY_BUCKET)) {
+                long targetMonth = TimeKeeper.monthOf(target.dateTime).getTime();
+                int skipTo = bucket;
+                while ((skipTo < buckets.length) && (buckets[skipTo] > targetMonth)) {
+                    skipTo++;
+                }
+                if (skipTo != bucket) {
+                    bucket = skipTo;
+                    rs = null;
+                    if (!advance()) {
+                        return false;
+                    }
+                }
+            }
+
+            while (key.compareTo(target) < 0) {
+                if (!advance()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
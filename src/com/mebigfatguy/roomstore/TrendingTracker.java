@@ -0,0 +1,313 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps the most said words of each channel over a sliding window, for ~ top and ~ trending, without touching storage.
+ * The window is a ring of fixed length slots, each a {@link SpaceSaving} summary of bounded size, so memory per channel
+ * is fixed however large the vocabulary, and a query only merges a few thousand counters. The summaries are
+ * checkpointed to the message store periodically and reloaded on start, so a restart doesn't empty the window.
+ */
+public class TrendingTracker {
+
+    public static final int DEFAULT_WORDS_PER_SLOT = 256;
+    public static final int DEFAULT_SLOTS = 24;
+    public static final long DEFAULT_SLOT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long DEFAULT_CHECKPOINT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final String CHECKPOINT_NAME = "trending";
+
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final int RECENT_SLOTS = 2;
+    private static final long MIN_TRENDING_COUNT = 3;
+
+    private final int wordsPerSlot;
+    private final int numSlots;
+    private final long slotMillis;
+    private final ConcurrentMap<String, ChannelWindow> channels = new ConcurrentHashMap<>();
+    private ScheduledExecutorService checkpointer;
+
+    public TrendingTracker() {
+        this(DEFAULT_WORDS_PER_SLOT, DEFAULT_SLOTS, DEFAULT_SLOT_MILLIS);
+    }
+
+    public TrendingTracker(int slotWords, int slots, long slotLength) {
+        wordsPerSlot = slotWords;
+        numSlots = Math.max(RECENT_SLOTS + 1, slots);
+        slotMillis = slotLength;
+    }
+
+    /**
+     * counts a word said in a channel at a time; words said before the window are ignored
+     */
+    public void record(String channel, String word, long time) {
+        ChannelWindow window = channels.get(channel);
+        if (window == null) {
+            window = channels.computeIfAbsent(channel, c -> new ChannelWindow());
+        }
+        window.record(word, time / slotMillis);
+    }
+
+    /**
+     * the n words said most in a channel over the whole window, most first
+     */
+    public List<WordCount> top(String channel, int n) {
+        ChannelWindow window = channels.get(channel);
+        if (window == null) {
+            return Collections.emptyList();
+        }
+
+        Map<String, long[]> totals = window.totals(0, numSlots, currentSlot());
+        PriorityQueue<WordCount> best = new PriorityQueue<>(n + 1);
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long count = entry.getValue()[0];
+            offer(best, n, new WordCount(entry.getKey(), count, count));
+        }
+        return drain(best);
+    }
+
+    /**
+     * the n words whose rate over the last couple of slots is furthest above their rate over the rest of the window,
+     * most trending first
+     */
+    public List<WordCount> trending(String channel, int n) {
+        ChannelWindow window = channels.get(channel);
+        if (window == null) {
+            return Collections.emptyList();
+        }
+
+        long slot = currentSlot();
+        Map<String, long[]> recent = window.totals(0, RECENT_SLOTS, slot);
+        Map<String, long[]> baseline = window.totals(RECENT_SLOTS, numSlots, slot);
+        double scale = (double) RECENT_SLOTS / (numSlots - RECENT_SLOTS);
+
+        PriorityQueue<WordCount> best = new PriorityQueue<>(n + 1);
+        for (Map.Entry<String, long[]> entry : recent.entrySet()) {
+            long count = entry.getValue()[0];
+            if (count >= MIN_TRENDING_COUNT) {
+                long[] before = baseline.get(entry.getKey());
+                double expected = (before == null) ? 0.0 : before[0] * scale;
+                double score = (count - expected) / Math.sqrt(expected + 1.0);
+                if (score > 0.0) {
+                    offer(best, n, new WordCount(entry.getKey(), count, score));
+                }
+            }
+        }
+        return drain(best);
+    }
+
+    /**
+     * reloads the window from the store's last checkpoint, if there is one, and checkpoints it every period from then on
+     */
+    public synchronized void startCheckpointing(final MessageStore store, long periodMillis) {
+        byte[] state = store.loadCheckpoint(CHECKPOINT_NAME);
+        if (state != null) {
+            try {
+                restore(state);
+            } catch (IOException ioe) {
+                IRCConnector.LOGGER.error("Ignoring unreadable trending checkpoint", ioe);
+            }
+        }
+
+        if (checkpointer == null) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setName("TrendingCheckpointer");
+                t.setDaemon(true);
+                return t;
+            });
+            checkpointer.scheduleWithFixedDelay(() -> checkpoint(store), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * stops the periodic checkpoints, and takes a last one
+     */
+    public synchronized void stopCheckpointing(MessageStore store) {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            checkpointer = null;
+            checkpoint(store);
+        }
+    }
+
+    byte[] snapshot() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(CHECKPOINT_VERSION);
+            dos.writeLong(slotMillis);
+            dos.writeInt(numSlots);
+            dos.writeInt(channels.size());
+            for (Map.Entry<String, ChannelWindow> entry : channels.entrySet()) {
+                dos.writeUTF(entry.getKey());
+                entry.getValue().write(dos);
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    void restore(byte[] state) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(state))) {
+            if ((dis.readInt() != CHECKPOINT_VERSION) || (dis.readLong() != slotMillis) || (dis.readInt() != numSlots)) {
+                IRCConnector.LOGGER.info("Trending checkpoint was taken with different settings, starting afresh");
+                return;
+            }
+            int numChannels = dis.readInt();
+            for (int i = 0; i < numChannels; i++) {
+                String channel = dis.readUTF();
+                channels.computeIfAbsent(channel, c -> new ChannelWindow()).read(dis);
+            }
+        }
+    }
+
+    private void checkpoint(MessageStore store) {
+        try {
+            store.saveCheckpoint(CHECKPOINT_NAME, snapshot());
+        } catch (IOException | RuntimeException e) {
+            IRCConnector.LOGGER.error("Failed checkpointing trending words", e);
+        }
+    }
+
+    private long currentSlot() {
+        return System.currentTimeMillis() / slotMillis;
+    }
+
+    private static void offer(PriorityQueue<WordCount> best, int n, WordCount candidate) {
+        best.offer(candidate);
+        if (best.size() > n) {
+            best.poll();
+        }
+    }
+
+    private static List<WordCount> drain(PriorityQueue<WordCount> best) {
+        List<WordCount> words = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            words.add(best.poll());
+        }
+        Collections.reverse(words);
+        return words;
+    }
+
+    /**
+     * a word, how often it was said, and what it was ranked by
+     */
+    public static class WordCount implements Comparable<WordCount> {
+        private final String word;
+        private final long count;
+        private final double score;
+
+        WordCount(String wcWord, long wcCount, double wcScore) {
+            word = wcWord;
+            count = wcCount;
+            score = wcScore;
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int compareTo(WordCount that) {
+            int cmp = Double.compare(score, that.score);
+            return (cmp != 0) ? cmp : that.word.compareTo(word);
+        }
+
+        @Override
+        public String toString() {
+            return word + " (" + count + ")";
+        }
+    }
+
+    /**
+     * one channel's ring of slot summaries, each remembering which slot number it currently holds
+     */
+    private class ChannelWindow {
+        private final SpaceSaving[] summaries = new SpaceSaving[numSlots];
+        private final long[] slotNumbers = new long[numSlots];
+
+        ChannelWindow() {
+            for (int i = 0; i < numSlots; i++) {
+                summaries[i] = new SpaceSaving(wordsPerSlot);
+                slotNumbers[i] = -1;
+            }
+        }
+
+        synchronized void record(String word, long slot) {
+            int index = (int) (slot % numSlots);
+            if (slotNumbers[index] != slot) {
+                if (slotNumbers[index] > slot) {
+                    return;
+                }
+                summaries[index].clear();
+                slotNumbers[index] = slot;
+            }
+            summaries[index].offer(word, 1);
+        }
+
+        /**
+         * sums the summaries from fromAge slots ago up to, but not including, toAge slots ago
+         */
+        synchronized Map<String, long[]> totals(int fromAge, int toAge, long currentSlot) {
+            Map<String, long[]> totals = new HashMap<>();
+            for (int age = fromAge; age < toAge; age++) {
+                long slot = currentSlot - age;
+                int index = (int) (slot % numSlots);
+                if (slotNumbers[index] == slot) {
+                    summaries[index].addTo(totals);
+                }
+            }
+            return totals;
+        }
+
+        synchronized void write(DataOutputStream dos) throws IOException {
+            for (int i = 0; i < numSlots; i++) {
+                dos.writeLong(slotNumbers[i]);
+                summaries[i].write(dos);
+            }
+        }
+
+        synchronized void read(DataInputStream dis) throws IOException {
+            for (int i = 0; i < numSlots; i++) {
+                slotNumbers[i] = dis.readLong();
+                summaries[i].read(dis);
+            }
+        }
+    }
+}
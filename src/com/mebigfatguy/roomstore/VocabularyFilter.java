@@ -0,0 +1,198 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.Meter;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+/**
+ * the words that have been indexed in each channel, as a bloom filter per channel, so that topic queries for words that
+ * were never said there, such as typos, can be answered without reading anything. A filter can say a word might have
+ * been said when it wasn't, but never the other way round, so until the filters are known to hold every indexed word,
+ * every word might have been said.
+ * <p>
+ * The filters are saved as store checkpoints when roomstore stops, an index of channels marked clean, followed by a
+ * checkpoint per channel, and loaded on start, when the index is marked dirty again, so that if roomstore then dies
+ * without saving, the next start builds the filters again from the store rather than trusting a stale copy.
+ */
+public class VocabularyFilter {
+
+    public static final int DEFAULT_WORDS_PER_CHANNEL = 200000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public static final String CHECKPOINT_NAME = "vocabulary";
+
+    private static final int VERSION = 1;
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+
+    private final int wordsPerChannel;
+    private final double falsePositiveRate;
+    private final Map<String, BloomFilter<CharSequence>> filters = new ConcurrentHashMap<>();
+    private final Meter misses = Instrumentation.REGISTRY.meter("vocabulary.misses");
+    private volatile boolean complete;
+
+    /**
+     * @param words
+     *            the number of distinct words per channel the filters are sized for, past which they give more false
+     *            positives
+     */
+    public VocabularyFilter(int words, double fpp) {
+        wordsPerChannel = words;
+        falsePositiveRate = fpp;
+    }
+
+    public void add(String channel, String word) {
+        BloomFilter<CharSequence> filter = filters.computeIfAbsent(channel, c -> BloomFilter.create(FUNNEL, wordsPerChannel, falsePositiveRate));
+        synchronized (filter) {
+            filter.put(word);
+        }
+    }
+
+    /**
+     * @return false only if the word has certainly never been indexed in the channel
+     */
+    public boolean mightContain(String channel, String word) {
+        if (!complete) {
+            return true;
+        }
+
+        BloomFilter<CharSequence> filter = filters.get(channel);
+        boolean found;
+        if (filter == null) {
+            found = false;
+        } else {
+            synchronized (filter) {
+                found = filter.mightContain(word);
+            }
+        }
+        if (!found) {
+            misses.mark();
+        }
+        return found;
+    }
+
+    /**
+     * @return whether every indexed word has been added, so that words not in the filters can be trusted not to have been
+     *         said
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * records that every word indexed so far has been added, with those indexed from now on added as they are
+     */
+    public void markComplete() {
+        complete = true;
+    }
+
+    /**
+     * loads the filters saved when roomstore last stopped, if it stopped cleanly, and marks them dirty, as they won't be
+     * kept up to date in the store from now on
+     *
+     * @return whether the filters were loaded, and so are complete
+     */
+    public boolean load(MessageStore store) {
+        byte[] index = store.loadCheckpoint(CHECKPOINT_NAME);
+        if (index == null) {
+            return false;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+            if ((in.readInt() != VERSION) || !in.readBoolean()) {
+                return false;
+            }
+            List<String> channels = readChannels(in);
+            for (int i = 0; i < channels.size(); i++) {
+                byte[] state = store.loadCheckpoint(CHECKPOINT_NAME + '.' + i);
+                if (state == null) {
+                    filters.clear();
+                    return false;
+                }
+                filters.put(channels.get(i), BloomFilter.readFrom(new ByteArrayInputStream(state), FUNNEL));
+            }
+            store.saveCheckpoint(CHECKPOINT_NAME, writeIndex(channels, false));
+            complete = true;
+            return true;
+        } catch (IOException ioe) {
+            IRCConnector.LOGGER.error("Ignoring unreadable vocabulary filters", ioe);
+            filters.clear();
+            return false;
+        }
+    }
+
+    /**
+     * saves the filters, if they are complete, for the next start, which must be after all indexing has stopped
+     */
+    public void save(MessageStore store) {
+        if (!complete) {
+            return;
+        }
+
+        try {
+            List<String> channels = new ArrayList<>(filters.keySet());
+            for (int i = 0; i < channels.size(); i++) {
+                BloomFilter<CharSequence> filter = filters.get(channels.get(i));
+                ByteArrayOutputStream state = new ByteArrayOutputStream();
+                synchronized (filter) {
+                    filter.writeTo(state);
+                }
+                store.saveCheckpoint(CHECKPOINT_NAME + '.' + i, state.toByteArray());
+            }
+            store.saveCheckpoint(CHECKPOINT_NAME, writeIndex(channels, true));
+        } catch (IOException ioe) {
+            IRCConnector.LOGGER.error("Failed saving vocabulary filters", ioe);
+        }
+    }
+
+    private static byte[] writeIndex(List<String> channels, boolean clean) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeBoolean(clean);
+        out.writeInt(channels.size());
+        for (String channel : channels) {
+            out.writeUTF(channel);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<String> readChannels(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> channels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            channels.add(in.readUTF());
+        }
+        return channels;
+    }
+}
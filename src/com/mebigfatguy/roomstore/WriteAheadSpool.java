@@ -0,0 +1,328 @@
+/*
+ * roomstore - an irc journaller using cassandra.
+ *
+ * Copyright 2011-2019 MeBigFatGuy.com
+ * Copyright 2011-2019 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.roomstore;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * a local, append only log of messages waiting to be written to cassandra, so that nothing is lost when the cluster is
+ * down or slow, and bursts are absorbed on disk rather than on the heap.
+ * <p>
+ * The log is a series of fixed size, memory mapped segment files. Each record is
+ *
+ * <pre>
+ * int length, int crc32, long timestamp, utf channel, utf sender, utf message
+ * </pre>
+ *
+ * where the utf strings are an unsigned short byte count followed by utf-8 bytes, and length and crc cover everything
+ * after them. The length is stored last, so a record torn by a crash reads as the end of the log. A length of -1 means
+ * the rest of the segment is unused, which is also how a record that fails its checksum when read is marked, giving up
+ * the rest of its segment, as its length can't be trusted to find the next record. The position up to which everything
+ * has been written to cassandra is kept in a checkpoint file, replaced atomically, and segments entirely before it are
+ * deleted.
+ */
+public class WriteAheadSpool implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_RECORD_LENGTH = 8 + 2 + 2 + 2;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "spool.checkpoint";
+
+    private final File directory;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer writeBuffer;
+    private int writeSegment;
+    private ByteBuffer readBuffer;
+    private int readSegment;
+    private long checkpoint;
+
+    public WriteAheadSpool(File spoolDirectory, int segmentBytes) throws IOException {
+        directory = spoolDirectory;
+        segmentSize = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+
+        checkpoint = readCheckpoint();
+        readSegment = segmentOf(checkpoint);
+        writeSegment = Math.max(readSegment, lastSegment());
+        writeBuffer = map(writeSegment);
+        if (writeSegment == readSegment) {
+            writeBuffer.position(offsetOf(checkpoint));
+            readBuffer = writeBuffer.duplicate();
+        } else {
+            readBuffer = map(readSegment);
+            readBuffer.position(offsetOf(checkpoint));
+        }
+        skipWrittenRecords();
+    }
+
+    /**
+     * appends a message to the log
+     *
+     * @return the position of the record
+     */
+    public synchronized long append(IngestEntry entry) throws IOException {
+        byte[] channel = entry.getChannel().getBytes(StandardCharsets.UTF_8);
+        byte[] sender = entry.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] message = entry.getMessage().getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 2 + channel.length + 2 + sender.length + 2 + message.length;
+        if ((channel.length > 0xFFFF) || (sender.length > 0xFFFF) || (message.length > 0xFFFF) || (HEADER_SIZE + length > segmentSize)) {
+            throw new IOException("Message too large to spool: " + length + " bytes");
+        }
+
+        if ((writeBuffer.remaining() < (HEADER_SIZE + length))) {
+            if (writeBuffer.remaining() >= 4) {
+                writeBuffer.putInt(writeBuffer.position(), END_OF_SEGMENT);
+            }
+            nextWriteSegment();
+        }
+
+        int start = writeBuffer.position();
+        writeBuffer.position(start + HEADER_SIZE);
+        writeBuffer.putLong(entry.getTimestamp());
+        putBytes(writeBuffer, channel);
+        putBytes(writeBuffer, sender);
+        putBytes(writeBuffer, message);
+
+        writeBuffer.putInt(start + 4, checksum(writeBuffer, start, length));
+        writeBuffer.putInt(start, length);
+
+        return position(writeSegment, start);
+    }
+
+    /**
+     * reads up to max records that haven't been read yet
+     *
+     * @return the number of records read
+     */
+    public synchronized int read(Collection<? super SpooledEntry> entries, int max) throws IOException {
+        int count = 0;
+        while (count < max) {
+            int start = readBuffer.position();
+            int length = (readBuffer.remaining() >= HEADER_SIZE) ? readBuffer.getInt(start) : END_OF_SEGMENT;
+            if (length == END_OF_SEGMENT) {
+                if (readSegment >= writeSegment) {
+                    break;
+                }
+                readSegment++;
+                readBuffer = (readSegment == writeSegment) ? writeBuffer.duplicate() : map(readSegment);
+                readBuffer.position(0);
+                continue;
+            }
+
+            if (length == 0) {
+                break;
+            }
+
+            if ((length < MIN_RECORD_LENGTH) || ((start + HEADER_SIZE + length) > readBuffer.limit())
+                    || (checksum(readBuffer, start, length) != readBuffer.getInt(start + 4))) {
+                IRCConnector.LOGGER.error("Skipping the rest of spool segment {} from offset {}, as its record there is damaged",
+                        Integer.valueOf(readSegment), Integer.valueOf(start));
+                readBuffer.putInt(start, END_OF_SEGMENT);
+                if (readSegment == writeSegment) {
+                    nextWriteSegment();
+                }
+                continue;
+            }
+
+            readBuffer.position(start + HEADER_SIZE);
+            long timestamp = readBuffer.getLong();
+            String channel = getString(readBuffer);
+            String sender = getString(readBuffer);
+            String message = getString(readBuffer);
+            entries.add(new SpooledEntry(channel, sender, message, timestamp, position(readSegment, start)));
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * the position of the next record to be read
+     */
+    public synchronized long getReadPosition() {
+        return position(readSegment, readBuffer.position());
+    }
+
+    /**
+     * records that everything before a position has been written to cassandra, flushing the log to disk first, and
+     * removes segments that are no longer needed
+     */
+    public synchronized void checkpoint(long position) throws IOException {
+        if (position == checkpoint) {
+            return;
+        }
+
+        writeBuffer.force();
+        Path checkpointPath = new File(directory, CHECKPOINT_FILE).toPath();
+        Path tempPath = new File(directory, CHECKPOINT_FILE + ".tmp").toPath();
+        try (OutputStream os = Files.newOutputStream(tempPath); DataOutputStream dos = new DataOutputStream(os)) {
+            dos.writeLong(position);
+        }
+        Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (int segment = segmentOf(checkpoint); segment < segmentOf(position); segment++) {
+            Files.deleteIfExists(segmentFile(segment).toPath());
+        }
+        checkpoint = position;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writeBuffer.force();
+    }
+
+    /**
+     * moves appending on to a new segment, flushing the old one first, as it is no longer forced by checkpoints
+     */
+    private void nextWriteSegment() throws IOException {
+        writeBuffer.force();
+        writeSegment++;
+        writeBuffer = map(writeSegment);
+    }
+
+    private long readCheckpoint() throws IOException {
+        File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        if (checkpointFile.isFile()) {
+            try (InputStream is = Files.newInputStream(checkpointFile.toPath()); DataInputStream dis = new DataInputStream(is)) {
+                return dis.readLong();
+            }
+        }
+
+        int first = firstSegment();
+        return position(Math.max(0, first), 0);
+    }
+
+    /**
+     * moves the write position past the records already in the last segment, stopping at the first empty one, or at a
+     * damaged one, which is cleared so it reads as the end of the log
+     */
+    private void skipWrittenRecords() {
+        while (writeBuffer.remaining() >= HEADER_SIZE) {
+            int start = writeBuffer.position();
+            int length = writeBuffer.getInt(start);
+            if (length <= 0) {
+                return;
+            }
+
+            if (((start + HEADER_SIZE + length) > segmentSize) || (checksum(writeBuffer, start, length) != writeBuffer.getInt(start + 4))) {
+                writeBuffer.putInt(start, 0);
+                return;
+            }
+            writeBuffer.position(start + HEADER_SIZE + length);
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int start, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(start + HEADER_SIZE + length);
+        record.position(start + HEADER_SIZE);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer map(int segment) throws IOException {
+        try (FileChannel fc = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, Integer.valueOf(segment), SEGMENT_SUFFIX));
+    }
+
+    private int firstSegment() {
+        int first = -1;
+        for (int segment : segmentNumbers()) {
+            if ((first < 0) || (segment < first)) {
+                first = segment;
+            }
+        }
+        return first;
+    }
+
+    private int lastSegment() {
+        int last = 0;
+        for (int segment : segmentNumbers()) {
+            last = Math.max(last, segment);
+        }
+        return last;
+    }
+
+    private int[] segmentNumbers() {
+        String[] names = directory.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (names == null) {
+            return new int[0];
+        }
+
+        int[] segments = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Integer.parseInt(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        return segments;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long position(int segment, int offset) {
+        return (((long) segment) << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+}